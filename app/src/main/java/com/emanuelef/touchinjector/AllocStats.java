@@ -0,0 +1,201 @@
+/*
+ * This file is part of TouchInjector.
+ *
+ * TouchInjector is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * TouchInjector is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with TouchInjector.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ * Copyright 2021 - Emanuele Faranda
+ */
+
+package com.emanuelef.touchinjector;
+
+import android.os.Build;
+import android.os.Debug;
+
+// Per pipeline stage allocation telemetry, used by both the app and the Main server process.
+// Each stage counts the objects and bytes allocated by the calling thread between begin and end,
+// via the ART allocation counters, and its duration. A reporter thread periodically prints the
+// per-event averages of each stage next to the GC count and time of the same window, so that the
+// allocation regressions and the GC pauses can be related to the tail latency spikes.
+// Disabled by default, as the allocation counting slows down the whole runtime. When disabled,
+// begin and end only check a flag.
+public class AllocStats {
+    private static final long SLOW_EVENT_NS = 4000000; // a stage slower than this may include a GC pause
+
+    private static volatile boolean mEnabled = false;
+    private static Thread mReporter;
+
+    public interface Output {
+        void print(String line);
+    }
+
+    public static class Stage {
+        private final String mName;
+        private final ThreadLocal<long[]> mStart = new ThreadLocal<long[]>() {
+            @Override
+            protected long[] initialValue() {
+                return new long[3];
+            }
+        };
+
+        // Accessed with the object lock held, reset on each report
+        private long mEvents;
+        private long mObjects;
+        private long mBytes;
+        private long mMaxBytes;
+        private long mMaxNanos;
+        private long mSlowEvents;
+
+        public Stage(String name) {
+            mName = name;
+        }
+
+        public void begin() {
+            if(!mEnabled)
+                return;
+
+            long[] start = mStart.get();
+            start[0] = Debug.getThreadAllocCount();
+            start[1] = Debug.getThreadAllocSize();
+            start[2] = System.nanoTime();
+        }
+
+        public void end() {
+            if(!mEnabled)
+                return;
+
+            long[] start = mStart.get();
+
+            if(start[2] == 0)
+                return; // enabled after begin
+
+            long nanos = System.nanoTime() - start[2];
+            long objects = Debug.getThreadAllocCount() - start[0];
+            long bytes = Debug.getThreadAllocSize() - start[1];
+            start[2] = 0;
+
+            synchronized (this) {
+                mEvents++;
+                mObjects += objects;
+                mBytes += bytes;
+                mMaxBytes = Math.max(mMaxBytes, bytes);
+                mMaxNanos = Math.max(mMaxNanos, nanos);
+
+                if(nanos >= SLOW_EVENT_NS)
+                    mSlowEvents++;
+            }
+        }
+
+        // Returns false if the stage had no events, i.e. it does not run in this process
+        private synchronized boolean report(StringBuilder sb) {
+            if(mEvents == 0)
+                return false;
+
+            sb.append(mName).append(": ").append(mEvents).append(" ev, ")
+                    .append(mObjects * 10 / mEvents / 10.f).append(" obj/ev, ")
+                    .append(mBytes / mEvents).append(" B/ev (max ").append(mMaxBytes)
+                    .append("), max ").append(mMaxNanos / 1000).append(" us, slow ").append(mSlowEvents);
+
+            mEvents = mObjects = mBytes = mMaxBytes = mMaxNanos = mSlowEvents = 0;
+            return true;
+        }
+    }
+
+    // The pipeline stages, in order
+    public static final Stage PARSE = new Stage("parse");       // SocketIME command parsing
+    public static final Stage HANDLER = new Stage("handler");   // IInputHandler, includes STATE
+    public static final Stage STATE = new Stage("state");       // InputInjector state build
+    public static final Stage MARSHAL = new Stage("marshal");   // MotionEvent build and backend
+    public static final Stage UNMARSHAL = new Stage("unmarshal"); // Main: event read and unparcel
+    public static final Stage INJECT = new Stage("inject");     // Main: InputManager injection
+
+    private static final Stage[] STAGES = {PARSE, HANDLER, STATE, MARSHAL, UNMARSHAL, INJECT};
+
+    public static boolean isEnabled() {
+        return mEnabled;
+    }
+
+    // Enables the counters and starts a reporter which prints the stats every interval ms
+    public static synchronized void start(long interval, Output output) {
+        if(mEnabled)
+            return;
+
+        Debug.startAllocCounting();
+        mEnabled = true;
+
+        mReporter = new Thread(() -> runReporter(interval, output), "AllocStats");
+        mReporter.setDaemon(true);
+        mReporter.start();
+    }
+
+    public static synchronized void stop() {
+        if(!mEnabled)
+            return;
+
+        mEnabled = false;
+        Debug.stopAllocCounting();
+        mReporter.interrupt();
+        mReporter = null;
+    }
+
+    private static long getGcStat(String name) {
+        // Only available on Android 6.0+
+        if(Build.VERSION.SDK_INT < Build.VERSION_CODES.M)
+            return -1;
+
+        try {
+            return Long.parseLong(Debug.getRuntimeStat(name));
+        } catch (NumberFormatException e) {
+            return -1;
+        }
+    }
+
+    private static void runReporter(long interval, Output output) {
+        StringBuilder sb = new StringBuilder();
+        long gcCount = getGcStat("art.gc.gc-count");
+        long gcTime = getGcStat("art.gc.gc-time");
+        long blockingCount = getGcStat("art.gc.blocking-gc-count");
+        long blockingTime = getGcStat("art.gc.blocking-gc-time");
+
+        while(mEnabled) {
+            try {
+                Thread.sleep(interval);
+            } catch (InterruptedException e) {
+                break;
+            }
+
+            long newGcCount = getGcStat("art.gc.gc-count");
+            long newGcTime = getGcStat("art.gc.gc-time");
+            long newBlockingCount = getGcStat("art.gc.blocking-gc-count");
+            long newBlockingTime = getGcStat("art.gc.blocking-gc-time");
+
+            sb.setLength(0);
+            sb.append("gc: +").append(newGcCount - gcCount).append(" (").append(newGcTime - gcTime)
+                    .append(" ms), blocking +").append(newBlockingCount - blockingCount)
+                    .append(" (").append(newBlockingTime - blockingTime).append(" ms)");
+            output.print(sb.toString());
+
+            gcCount = newGcCount;
+            gcTime = newGcTime;
+            blockingCount = newBlockingCount;
+            blockingTime = newBlockingTime;
+
+            for(Stage stage: STAGES) {
+                sb.setLength(0);
+
+                if(stage.report(sb))
+                    output.print(sb.toString());
+            }
+        }
+    }
+}
@@ -0,0 +1,269 @@
+/*
+ * This file is part of TouchInjector.
+ *
+ * TouchInjector is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * TouchInjector is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with TouchInjector.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ * Copyright 2021 - Emanuele Faranda
+ */
+
+package com.emanuelef.touchinjector;
+
+import android.graphics.PointF;
+import android.os.Build;
+import android.os.Handler;
+import android.os.Looper;
+import android.os.SystemClock;
+import android.util.Log;
+import android.view.MotionEvent;
+
+import com.emanuelef.touchinjector.ime.GestureBackend;
+import com.emanuelef.touchinjector.ime.InjectionBackend;
+import com.emanuelef.touchinjector.ime.InputInjector;
+import com.emanuelef.touchinjector.ime.InstrumentationBackend;
+import com.emanuelef.touchinjector.ime.MainServerBackend;
+import com.emanuelef.touchinjector.ime.RecordingBackend;
+import com.emanuelef.touchinjector.ime.TouchAccessibilityService;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+
+// Compares the injection backends by injecting probe gestures into the DrawView:
+//  - latency: from posting an UP to its delivery to the view, over TRIALS gestures
+//  - throughput: rate of the move samples delivered to the view during a burst of NUM_MOVES moves
+//    posted without delays
+// The recording backend does not reach the view, its numbers are measured at the backend.
+// A private injector is used, so that the backends of the injector in use are not switched and its
+// pointers are not moved by the probes.
+public class Benchmark implements DrawView.ProbeListener {
+    private static final String TAG = "Benchmark";
+    private static final int PROBE_POINTER = 9;
+    private static final int TRIALS = 10;
+    private static final int NUM_MOVES = 200;
+    private static final int MOVE_STEP = 10; // px
+    private static final long HOLD = 100; // ms
+    private static final long EVENTS_TIMEOUT = 2000; // ms
+
+    private final DrawView mView;
+    private final Listener mListener;
+    private final Handler mHandler;
+    private final PointF mOrigin;
+    private final PointF mPos;
+
+    // Accessed with the object lock held
+    private long mUpArrival;
+    private long mLastMoveArrival;
+    private int mMoveSamples;
+
+    public interface Listener {
+        // Called on the UI thread
+        void onBenchmarkDone(String report);
+    }
+
+    // x, y: on-screen coordinates of the probe gestures, within the view
+    public Benchmark(DrawView view, float x, float y, Listener listener) {
+        mView = view;
+        mListener = listener;
+        mHandler = new Handler(Looper.getMainLooper());
+        mOrigin = new PointF(x, y);
+        mPos = new PointF();
+    }
+
+    public void start() {
+        mView.setProbeListener(this);
+        new Thread(this::run).start();
+    }
+
+    @Override
+    public synchronized void onProbeEvent(MotionEvent event) {
+        if(event.getPointerId(event.getActionIndex()) != PROBE_POINTER)
+            return;
+
+        long now = SystemClock.uptimeMillis();
+
+        switch(event.getActionMasked()) {
+            case MotionEvent.ACTION_UP:
+            case MotionEvent.ACTION_POINTER_UP:
+                mUpArrival = now;
+                notifyAll();
+                break;
+            case MotionEvent.ACTION_MOVE:
+                mLastMoveArrival = now;
+                mMoveSamples += event.getHistorySize() + 1;
+                break;
+        }
+    }
+
+    private void run() {
+        StringBuilder report = new StringBuilder();
+        InputInjector injector = InputInjector.startPrivate(InputInjector.DEFAULT_DISPLAY);
+
+        try {
+            ArrayList<InjectionBackend> backends = new ArrayList<>();
+            backends.add(new MainServerBackend(injector.getDisplayId()));
+            backends.add(new InstrumentationBackend());
+
+            if(Build.VERSION.SDK_INT < Build.VERSION_CODES.O)
+                report.append("accessibility_gesture: requires Android 8.0\n");
+            else if(TouchAccessibilityService.getInstance() != null)
+                backends.add(new GestureBackend());
+            else
+                report.append("accessibility_gesture: service not enabled\n");
+
+            backends.add(new RecordingBackend());
+
+            for(InjectionBackend backend: backends) {
+                injector.setBackend(backend);
+                benchmark(injector, backend, report);
+            }
+        } catch (InterruptedException e) {
+            report.append("Interrupted\n");
+        } finally {
+            injector.release();
+            Log.d(TAG, "Results:\n" + report);
+
+            mHandler.post(() -> {
+                mView.setProbeListener(null);
+                mListener.onBenchmarkDone(report.toString());
+            });
+        }
+    }
+
+    private void benchmark(InputInjector injector, InjectionBackend backend, StringBuilder report)
+            throws InterruptedException {
+        RecordingBackend recorder = (backend instanceof RecordingBackend) ? (RecordingBackend) backend : null;
+        long[] latencies = new long[TRIALS];
+        int numLatencies = 0;
+
+        for(int i = 0; i < TRIALS; i++) {
+            synchronized (this) {
+                mUpArrival = 0;
+            }
+
+            mPos.set(mOrigin.x, mOrigin.y);
+            injector.setDelay(0);
+            injector.touchDown(PROBE_POINTER, mPos);
+            Thread.sleep(HOLD);
+
+            long since = (recorder != null) ? recorder.getNumEvents() : 0;
+            long postedAt = SystemClock.uptimeMillis();
+            injector.setDelay(0);
+            injector.touchUp(PROBE_POINTER);
+
+            long arrival;
+
+            if(recorder != null) {
+                long idx = waitRecorded(recorder, MotionEvent.ACTION_UP, since);
+                arrival = (idx >= 0) ? recorder.getInjectTime(idx) : 0;
+            } else
+                arrival = waitUp();
+
+            if(arrival > 0)
+                latencies[numLatencies++] = arrival - postedAt;
+
+            Thread.sleep(HOLD);
+        }
+
+        synchronized (this) {
+            mUpArrival = 0;
+            mMoveSamples = 0;
+            mLastMoveArrival = 0;
+        }
+
+        long startEvents = (recorder != null) ? recorder.getNumEvents() : 0;
+        mPos.set(mOrigin.x, mOrigin.y);
+        injector.setDelay(0);
+        injector.touchDown(PROBE_POINTER, mPos);
+        Thread.sleep(HOLD);
+
+        long start = SystemClock.uptimeMillis();
+
+        for(int i = 1; i <= NUM_MOVES; i++) {
+            mPos.set(mOrigin.x + (i % 2) * MOVE_STEP, mOrigin.y);
+            injector.setDelay(0);
+            injector.touchMove(PROBE_POINTER, mPos);
+        }
+
+        injector.setDelay(0);
+        injector.touchUp(PROBE_POINTER);
+
+        int samples;
+        long end;
+
+        if(recorder != null) {
+            long upIdx = waitRecorded(recorder, MotionEvent.ACTION_UP, startEvents);
+            samples = (upIdx >= 0) ? (int) (upIdx - startEvents - 1) : 0; // the moves between DOWN and UP
+            end = (upIdx >= 0) ? recorder.getInjectTime(upIdx - 1) : 0;
+        } else {
+            waitUp();
+
+            synchronized (this) {
+                samples = mMoveSamples;
+                end = mLastMoveArrival;
+            }
+        }
+
+        report.append(backend.getName()).append(": latency ");
+
+        if(numLatencies > 0) {
+            Arrays.sort(latencies, 0, numLatencies);
+            report.append("p50 ").append(latencies[numLatencies / 2])
+                    .append(" max ").append(latencies[numLatencies - 1]).append(" ms");
+        } else
+            report.append("-");
+
+        report.append(", throughput ");
+
+        if((samples > 0) && (end > start))
+            report.append(samples * 1000 / (end - start)).append(" samples/s (")
+                    .append(samples).append("/").append(NUM_MOVES).append(")\n");
+        else
+            report.append("-\n");
+
+        Thread.sleep(HOLD);
+    }
+
+    // Returns the arrival time of the UP, 0 on timeout
+    private synchronized long waitUp() throws InterruptedException {
+        long deadline = SystemClock.uptimeMillis() + EVENTS_TIMEOUT;
+
+        while(mUpArrival == 0) {
+            long toWait = deadline - SystemClock.uptimeMillis();
+
+            if(toWait <= 0)
+                return 0;
+
+            wait(toWait);
+        }
+
+        return mUpArrival;
+    }
+
+    // Waits for an event with the given action to be recorded at or after the since index, returns
+    // its index or -1 on timeout
+    private static long waitRecorded(RecordingBackend recorder, int action, long since)
+            throws InterruptedException {
+        long deadline = SystemClock.uptimeMillis() + EVENTS_TIMEOUT;
+
+        while(SystemClock.uptimeMillis() < deadline) {
+            long idx = recorder.findLast(action);
+
+            if(idx >= since)
+                return idx;
+
+            Thread.sleep(1);
+        }
+
+        return -1;
+    }
+}
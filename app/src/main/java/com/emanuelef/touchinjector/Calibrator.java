@@ -0,0 +1,275 @@
+/*
+ * This file is part of TouchInjector.
+ *
+ * TouchInjector is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * TouchInjector is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with TouchInjector.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ * Copyright 2021 - Emanuele Faranda
+ */
+
+package com.emanuelef.touchinjector;
+
+import android.content.Context;
+import android.graphics.PointF;
+import android.os.Handler;
+import android.os.Looper;
+import android.util.Log;
+import android.view.Choreographer;
+import android.view.MotionEvent;
+
+import com.emanuelef.touchinjector.ime.Delays;
+import com.emanuelef.touchinjector.ime.InputInjector;
+
+// Measures the minimum Delays the device needs to register the injected events, by injecting probe
+// gestures into the DrawView. An event is considered registered when it is delivered in a different
+// frame than the previous one, since a game only sees the last state of each frame.
+// The Main injection server must be running. The probes use a private injector, so that they do not
+// race with the commands of a SocketIME client.
+public class Calibrator implements DrawView.ProbeListener, Choreographer.FrameCallback {
+    private static final String TAG = "Calibrator";
+    private static final int PROBE_POINTER = 9;
+    private static final int TRIALS = 5;
+    private static final long[] CANDIDATES = {0, 1, 2, 4, 6, 8, 10, 12, 16, 20, 25, 30, 40, 50, 60, 80};
+    private static final long HOLD = 100; // ms, a safe delay around the measured one
+    private static final long EVENTS_WAIT = 300; // ms, time for the events to reach the view
+    private static final int NUM_MOVES = 8;
+    private static final int MOVE_STEP = 10; // px
+    private static final int MAX_RECORDS = 64;
+
+    private static final int PROBE_DOWN_TO_MOVE = 0;
+    private static final int PROBE_MOVE_TO_UP = 1;
+    private static final int PROBE_UP_TO_DOWN = 2;
+    private static final int PROBE_INTER_EVENT = 3;
+    private static final int NUM_PROBES = 4;
+
+    private final Context mContext;
+    private final DrawView mView;
+    private final Listener mListener;
+    private final Handler mHandler;
+    private final PointF mOrigin;
+    private final PointF mPos;
+    private Thread mThread;
+    private InputInjector mInjector; // only used by mThread
+    private volatile boolean mRunning;
+
+    // Accessed with the object lock held
+    private final int[] mActions = new int[MAX_RECORDS];
+    private final long[] mFrames = new long[MAX_RECORDS];
+    private final int[] mSamples = new int[MAX_RECORDS];
+    private int mNumRecords;
+    private long mFrameCount;
+
+    public interface Listener {
+        // Called on the UI thread
+        void onCalibrationDone(boolean success);
+    }
+
+    // x, y: on-screen coordinates of the probe gestures, within the view
+    public Calibrator(Context ctx, DrawView view, float x, float y, Listener listener) {
+        mContext = ctx.getApplicationContext();
+        mView = view;
+        mListener = listener;
+        mHandler = new Handler(Looper.getMainLooper());
+        mOrigin = new PointF(x, y);
+        mPos = new PointF();
+    }
+
+    public void start() {
+        mRunning = true;
+        mView.setProbeListener(this);
+        Choreographer.getInstance().postFrameCallback(this);
+
+        mThread = new Thread(this::run);
+        mThread.start();
+    }
+
+    @Override
+    public void doFrame(long frameTimeNanos) {
+        synchronized (this) {
+            mFrameCount++;
+        }
+
+        if(mRunning)
+            Choreographer.getInstance().postFrameCallback(this);
+    }
+
+    @Override
+    public synchronized void onProbeEvent(MotionEvent event) {
+        int action = event.getActionMasked();
+
+        if((mNumRecords >= MAX_RECORDS) || (event.getPointerId(event.getActionIndex()) != PROBE_POINTER))
+            return;
+
+        mActions[mNumRecords] = action;
+        mFrames[mNumRecords] = mFrameCount;
+        mSamples[mNumRecords] = (action == MotionEvent.ACTION_MOVE) ? event.getHistorySize() + 1 : 1;
+        mNumRecords++;
+    }
+
+    private void run() {
+        long[] results = new long[NUM_PROBES];
+        boolean success = false;
+
+        mInjector = InputInjector.startPrivate(InputInjector.DEFAULT_DISPLAY);
+
+        try {
+            // Ensure that the events are injected at all
+            if(!runTrial(PROBE_DOWN_TO_MOVE, HOLD)) {
+                Log.w(TAG, "Probe events not received, is the Main server running?");
+                return;
+            }
+
+            for(int probe = 0; probe < NUM_PROBES; probe++) {
+                results[probe] = measure(probe);
+
+                if(results[probe] < 0) {
+                    Log.w(TAG, "Probe " + probe + " failed");
+                    return;
+                }
+            }
+
+            Delays.downToMove = results[PROBE_DOWN_TO_MOVE];
+            Delays.moveToUp = results[PROBE_MOVE_TO_UP];
+            Delays.upToDown = results[PROBE_UP_TO_DOWN];
+            Delays.interEvent = results[PROBE_INTER_EVENT];
+            Delays.save(mContext);
+            success = true;
+        } catch (InterruptedException e) {
+            Log.d(TAG, "Calibration interrupted");
+        } finally {
+            final boolean rv = success;
+            mRunning = false;
+            mInjector.release();
+
+            mHandler.post(() -> {
+                mView.setProbeListener(null);
+                mListener.onCalibrationDone(rv);
+            });
+        }
+    }
+
+    // Returns the min delay which passes all the trials, -1 if none does
+    private long measure(int probe) throws InterruptedException {
+        for(long delay: CANDIDATES) {
+            boolean passed = true;
+
+            for(int i = 0; (i < TRIALS) && passed; i++)
+                passed = runTrial(probe, delay);
+
+            Log.d(TAG, "Probe " + probe + " @ " + delay + " ms: " + (passed ? "OK" : "FAIL"));
+
+            if(passed)
+                return delay;
+        }
+
+        return -1;
+    }
+
+    private boolean runTrial(int probe, long delay) throws InterruptedException {
+        InputInjector injector = mInjector;
+
+        synchronized (this) {
+            mNumRecords = 0;
+        }
+
+        mPos.set(mOrigin.x, mOrigin.y);
+        injector.setDelay(0);
+        injector.touchDown(PROBE_POINTER, mPos);
+
+        switch(probe) {
+            case PROBE_DOWN_TO_MOVE:
+                injector.setDelay(delay);
+                moveProbe(injector, 1);
+                injector.setDelay(HOLD);
+                injector.touchUp(PROBE_POINTER);
+                break;
+            case PROBE_MOVE_TO_UP:
+                injector.setDelay(HOLD);
+                moveProbe(injector, 1);
+                injector.setDelay(delay);
+                injector.touchUp(PROBE_POINTER);
+                break;
+            case PROBE_UP_TO_DOWN:
+                injector.setDelay(HOLD);
+                injector.touchUp(PROBE_POINTER);
+                injector.setDelay(delay);
+                injector.touchDown(PROBE_POINTER, mPos);
+                injector.setDelay(HOLD);
+                injector.touchUp(PROBE_POINTER);
+                break;
+            case PROBE_INTER_EVENT:
+                injector.setDelay(HOLD);
+
+                for(int i = 1; i <= NUM_MOVES; i++) {
+                    moveProbe(injector, i);
+                    injector.setDelay(delay);
+                }
+
+                injector.setDelay(HOLD);
+                injector.touchUp(PROBE_POINTER);
+                break;
+        }
+
+        Thread.sleep(HOLD * 2 + delay * NUM_MOVES + EVENTS_WAIT);
+
+        synchronized (this) {
+            return checkTrial(probe);
+        }
+    }
+
+    private void moveProbe(InputInjector injector, int step) {
+        mPos.set(mOrigin.x + step * MOVE_STEP, mOrigin.y);
+        injector.touchMove(PROBE_POINTER, mPos);
+    }
+
+    private int findRecord(int action, int nth) {
+        for(int i = 0; i < mNumRecords; i++) {
+            if((mActions[i] == action) && (nth-- == 0))
+                return i;
+        }
+
+        return -1;
+    }
+
+    private boolean checkTrial(int probe) {
+        switch(probe) {
+            case PROBE_DOWN_TO_MOVE: {
+                int down = findRecord(MotionEvent.ACTION_DOWN, 0);
+                int move = findRecord(MotionEvent.ACTION_MOVE, 0);
+                return((down >= 0) && (move >= 0) && (mFrames[move] > mFrames[down]));
+            }
+            case PROBE_MOVE_TO_UP: {
+                int move = findRecord(MotionEvent.ACTION_MOVE, 0);
+                int up = findRecord(MotionEvent.ACTION_UP, 0);
+                return((move >= 0) && (up >= 0) && (mFrames[up] > mFrames[move]));
+            }
+            case PROBE_UP_TO_DOWN: {
+                int up = findRecord(MotionEvent.ACTION_UP, 0);
+                int down = findRecord(MotionEvent.ACTION_DOWN, 1);
+                return((up >= 0) && (down >= 0) && (mFrames[down] > mFrames[up]));
+            }
+            case PROBE_INTER_EVENT: {
+                int samples = 0;
+
+                for(int i = 0; i < mNumRecords; i++) {
+                    if(mActions[i] == MotionEvent.ACTION_MOVE)
+                        samples += mSamples[i];
+                }
+
+                return(samples == NUM_MOVES);
+            }
+        }
+
+        return false;
+    }
+}
@@ -22,48 +22,121 @@ package com.emanuelef.touchinjector;
 import android.content.Context;
 import android.graphics.Canvas;
 import android.graphics.Paint;
-import android.graphics.Path;
-import android.graphics.PointF;
+import android.os.SystemClock;
 import android.util.AttributeSet;
+import android.view.Choreographer;
 import android.view.MotionEvent;
 import android.view.View;
 
-import java.util.HashMap;
-import java.util.Iterator;
-import java.util.Map;
-
 import androidx.annotation.Nullable;
 
 public class DrawView extends View {
     private static final String TAG = "DrawView";
     private static final long FADE_STEP = 33; // 30 fps
-    private final HashMap<Integer, Pointer> mPointers;
-    private final HashMap<Integer, Pointer> mFading;
+    private static final int MAX_POINTERS = 32; // pointer IDs are in the [0, 31] range
+    private static final int TRAIL_SEGMENTS = 256;
+    private static final float TEXT_SIZE = 28.0f;
+    private final Pointer[] mPointers;
     private final Paint mPaint;
+    private final Paint mTextPaint;
+    private final InjectionStats mStats;
+    private final StringBuilder mText;
+    private char[] mTextChars;
+    private final Choreographer.FrameCallback mFrameCallback;
+    private boolean mFramePending;
+    private ProbeListener mProbeListener;
+
+    // Receives the touch events of the view, see Calibrator
+    public interface ProbeListener {
+        void onProbeEvent(MotionEvent event);
+    }
 
+    // Holds the last TRAIL_SEGMENTS segments of the pointer path in a ring buffer, so that the
+    // drawing cost does not grow while the pointer is held down
     private static class Pointer {
-        int mId;
-        Path mPath;
-        PointF mPos;
+        final float[] mSegments;
+        int mHead;
+        int mNumSegments;
+        float mX, mY;
+        boolean mDown;
         int mFadingStep;
 
-        Pointer(int id) {
-            mId = id;
-            mPos = null;
-            mPath = new Path();
+        Pointer() {
+            mSegments = new float[TRAIL_SEGMENTS * 4];
+        }
+
+        void moveTo(float x, float y) {
+            mHead = 0;
+            mNumSegments = 0;
+            mX = x;
+            mY = y;
+            mDown = true;
             mFadingStep = 0;
         }
+
+        void lineTo(float x, float y) {
+            if((x == mX) && (y == mY))
+                return;
+
+            int off = mHead * 4;
+            mSegments[off] = mX;
+            mSegments[off + 1] = mY;
+            mSegments[off + 2] = x;
+            mSegments[off + 3] = y;
+
+            mHead = (mHead + 1) % TRAIL_SEGMENTS;
+            mNumSegments = Math.min(mNumSegments + 1, TRAIL_SEGMENTS);
+            mX = x;
+            mY = y;
+        }
+
+        boolean isVisible() {
+            return(mDown || (mFadingStep > 0));
+        }
+
+        void draw(Canvas canvas, Paint paint) {
+            // The ring buffer content is made of at most two contiguous regions
+            int tail = (mHead - mNumSegments + TRAIL_SEGMENTS) % TRAIL_SEGMENTS;
+            int firstCount = Math.min(mNumSegments, TRAIL_SEGMENTS - tail);
+
+            canvas.drawLines(mSegments, tail * 4, firstCount * 4, paint);
+
+            if(firstCount < mNumSegments)
+                canvas.drawLines(mSegments, 0, (mNumSegments - firstCount) * 4, paint);
+
+            canvas.drawCircle(mX, mY, 80.0f, paint);
+        }
     }
 
     public DrawView(Context context, @Nullable AttributeSet attrs) {
         super(context, attrs);
 
-        mPointers = new HashMap<>();
-        mFading = new HashMap<>();
+        mPointers = new Pointer[MAX_POINTERS];
         mPaint = new Paint();
 
+        for(int i = 0; i < MAX_POINTERS; i++)
+            mPointers[i] = new Pointer();
+
         mPaint.setStyle(Paint.Style.STROKE);
         mPaint.setColor(0xFF555555);
+
+        mTextPaint = new Paint(Paint.ANTI_ALIAS_FLAG);
+        mTextPaint.setColor(0xFF555555);
+        mTextPaint.setTextSize(TEXT_SIZE);
+
+        mStats = new InjectionStats();
+        mText = new StringBuilder(2048);
+        mTextChars = new char[2048];
+
+        // Measures the latency to the vsync of the frame which will draw the received events
+        mFrameCallback = frameTimeNanos -> {
+            mFramePending = false;
+            mStats.onFrame(frameTimeNanos / 1000000);
+        };
+    }
+
+    public void setProbeListener(ProbeListener listener) {
+        mProbeListener = listener;
     }
 
     private void handlePointerEvent(int idx, MotionEvent event) {
@@ -73,32 +146,27 @@ public class DrawView extends View {
         int action = event.getActionMasked();
 
         //Log.d(TAG, "onTouchEvent: " + pointer + " -> " + action);
-        Pointer ptr = mPointers.get(pointer);
 
-        if(ptr == null) {
-            ptr = new Pointer(pointer);
-            mPointers.put(pointer, ptr);
-        }
+        if((pointer < 0) || (pointer >= MAX_POINTERS))
+            return;
+
+        Pointer ptr = mPointers[pointer];
 
         switch(action) {
             case MotionEvent.ACTION_DOWN:
             case MotionEvent.ACTION_POINTER_DOWN:
-                ptr.mPath.moveTo(x, y);
-                ptr.mPos = new PointF(x, y);
+                ptr.moveTo(x, y);
                 break;
             case MotionEvent.ACTION_UP:
             case MotionEvent.ACTION_POINTER_UP:
-                ptr.mFadingStep = 15; // fade in about 500 ms
-                mFading.put(pointer, ptr);
-                mPointers.remove(pointer);
+                if(ptr.mDown) {
+                    ptr.mDown = false;
+                    ptr.mFadingStep = 15; // fade in about 500 ms
+                }
                 break;
             case MotionEvent.ACTION_MOVE:
-                ptr.mPath.lineTo(x, y);
-                ptr.mPos = new PointF(x, y);
-                break;
-            case MotionEvent.ACTION_CANCEL:
-                mPointers.clear();
-                mFading.clear();
+                if(ptr.mDown)
+                    ptr.lineTo(x, y);
                 break;
         }
     }
@@ -107,7 +175,22 @@ public class DrawView extends View {
     public boolean onTouchEvent(MotionEvent event) {
         int action = event.getActionMasked();
 
-        if(action == MotionEvent.ACTION_MOVE) {
+        mStats.onMotionEvent(event, SystemClock.uptimeMillis());
+
+        if(mProbeListener != null)
+            mProbeListener.onProbeEvent(event);
+
+        if(!mFramePending) {
+            Choreographer.getInstance().postFrameCallback(mFrameCallback);
+            mFramePending = true;
+        }
+
+        if(action == MotionEvent.ACTION_CANCEL) {
+            for(Pointer ptr: mPointers) {
+                ptr.mDown = false;
+                ptr.mFadingStep = 0;
+            }
+        } else if(action == MotionEvent.ACTION_MOVE) {
             for(int i = 0; i < event.getPointerCount(); i++)
                 handlePointerEvent(i, event);
         } else
@@ -121,37 +204,65 @@ public class DrawView extends View {
     protected void onDraw(Canvas canvas) {
         super.onDraw(canvas);
 
-        Iterator<Map.Entry<Integer, Pointer>> it = mPointers.entrySet().iterator();
-        mPaint.setStrokeWidth(2.0f);
+        boolean fading = false;
 
-        // Draw the down pointers
-        while(it.hasNext()) {
-            Pointer ptr = it.next().getValue();
+        for(Pointer ptr: mPointers) {
+            if(!ptr.isVisible())
+                continue;
+
+            if(ptr.mDown) {
+                // Draw the down pointers
+                mPaint.setStrokeWidth(2.0f);
+            } else {
+                // Draw the previously down pointers
+                if(--ptr.mFadingStep <= 0)
+                    continue;
 
-            canvas.drawPath(ptr.mPath, mPaint);
+                mPaint.setStrokeWidth(ptr.mFadingStep * 2.f / 15.f);
+                fading = true;
+            }
 
-            if(ptr.mPos != null)
-                canvas.drawCircle(ptr.mPos.x, ptr.mPos.y, 80.0f, mPaint);
+            ptr.draw(canvas, mPaint);
         }
 
-        // Draw the previously down pointers
-        it = mFading.entrySet().iterator();
+        drawStats(canvas);
 
-        while(it.hasNext()) {
-            Pointer ptr = it.next().getValue();
+        if(fading)
+            postInvalidateDelayed(FADE_STEP);
+    }
 
-            if((ptr.mPos == null) || (--ptr.mFadingStep <= 0)) {
-                it.remove();
-                continue;
-            }
+    private void drawStats(Canvas canvas) {
+        mText.setLength(0);
+        mStats.format(mText);
 
-            mPaint.setStrokeWidth(ptr.mFadingStep * 2.f / 15.f);
+        int len = mText.length();
 
-            canvas.drawPath(ptr.mPath, mPaint);
-            canvas.drawCircle(ptr.mPos.x, ptr.mPos.y, 80.0f, mPaint);
-        }
+        if(mTextChars.length < len)
+            mTextChars = new char[len];
 
-        if(mFading.size() != 0)
-            postInvalidateDelayed(FADE_STEP);
+        mText.getChars(0, len, mTextChars, 0);
+
+        // Draw the lines bottom up from the bottom left corner
+        float y = getHeight() - TEXT_SIZE;
+        int end = len;
+
+        while(end > 0) {
+            int start = end - 1;
+
+            while((start > 0) && (mTextChars[start - 1] != '\n'))
+                start--;
+
+            int count = end - start;
+
+            if((count > 0) && (mTextChars[end - 1] == '\n'))
+                count--;
+
+            if(count > 0) {
+                canvas.drawText(mTextChars, start, count, TEXT_SIZE, y, mTextPaint);
+                y -= TEXT_SIZE * 1.2f;
+            }
+
+            end = start;
+        }
     }
 }
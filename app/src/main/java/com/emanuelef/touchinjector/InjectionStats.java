@@ -0,0 +1,241 @@
+/*
+ * This file is part of TouchInjector.
+ *
+ * TouchInjector is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * TouchInjector is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with TouchInjector.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ * Copyright 2021 - Emanuele Faranda
+ */
+
+package com.emanuelef.touchinjector;
+
+import android.view.MotionEvent;
+
+import java.util.Arrays;
+
+// Measures the received touch events to validate the injection performance:
+//  - latency from the event time to its arrival into the view
+//  - latency from the event time to the vsync of the frame which draws it
+//  - rolling rate of the received samples, including the batched historical ones
+//  - per pointer dropped samples (interval gaps) and duplicated samples (no pointer moved)
+// All the storage is preallocated so that measuring does not disturb what is measured.
+public class InjectionStats {
+    private static final int NUM_SAMPLES = 256;
+    private static final int MAX_POINTERS = 32;
+    private static final long RATE_WINDOW = 1000; // ms
+    private static final float DROP_FACTOR = 2.5f; // interval / average interval to consider samples lost
+    private static final float AVG_WEIGHT = 0.1f;
+
+    private final LatencyRing mArrival = new LatencyRing();
+    private final LatencyRing mVsync = new LatencyRing();
+    private final int[] mSorted = new int[NUM_SAMPLES];
+
+    private long mRateWindowStart;
+    private int mWindowSamples;
+    private int mRate;
+    private long mPendingEventTime = -1;
+
+    private final boolean[] mDown = new boolean[MAX_POINTERS];
+    private final long[] mLastTime = new long[MAX_POINTERS];
+    private final float[] mLastX = new float[MAX_POINTERS];
+    private final float[] mLastY = new float[MAX_POINTERS];
+    private final float[] mAvgInterval = new float[MAX_POINTERS];
+    private final int[] mDropped = new int[MAX_POINTERS];
+    private final int[] mDuplicated = new int[MAX_POINTERS];
+    private final int[] mReceived = new int[MAX_POINTERS];
+
+    private static class LatencyRing {
+        final int[] mValues = new int[NUM_SAMPLES];
+        int mHead;
+        int mCount;
+
+        void add(long value) {
+            mValues[mHead] = (int) value;
+            mHead = (mHead + 1) % NUM_SAMPLES;
+            mCount = Math.min(mCount + 1, NUM_SAMPLES);
+        }
+    }
+
+    public void onMotionEvent(MotionEvent event, long arrivalMillis) {
+        int action = event.getActionMasked();
+        long eventTime = event.getEventTime();
+
+        mArrival.add(arrivalMillis - eventTime);
+
+        if(mPendingEventTime < 0)
+            mPendingEventTime = eventTime;
+
+        switch(action) {
+            case MotionEvent.ACTION_DOWN:
+            case MotionEvent.ACTION_POINTER_DOWN: {
+                int idx = event.getActionIndex();
+                int id = event.getPointerId(idx);
+
+                if(isValid(id)) {
+                    mDown[id] = true;
+                    mLastTime[id] = eventTime;
+                    mLastX[id] = event.getX(idx);
+                    mLastY[id] = event.getY(idx);
+                    mAvgInterval[id] = 0;
+                    mDropped[id] = 0;
+                    mDuplicated[id] = 0;
+                    mReceived[id] = 1;
+                }
+                countSamples(arrivalMillis, 1);
+                break;
+            }
+            case MotionEvent.ACTION_UP:
+            case MotionEvent.ACTION_POINTER_UP: {
+                int id = event.getPointerId(event.getActionIndex());
+
+                if(isValid(id))
+                    mDown[id] = false;
+                countSamples(arrivalMillis, 1);
+                break;
+            }
+            case MotionEvent.ACTION_CANCEL:
+                Arrays.fill(mDown, false);
+                break;
+            case MotionEvent.ACTION_MOVE: {
+                int historySize = event.getHistorySize();
+
+                for(int h = 0; h < historySize; h++) {
+                    long when = event.getHistoricalEventTime(h);
+                    boolean moved = false;
+
+                    for(int p = 0; p < event.getPointerCount(); p++)
+                        moved |= onPointerSample(event.getPointerId(p), when,
+                                event.getHistoricalX(p, h), event.getHistoricalY(p, h));
+
+                    if(!moved)
+                        countDuplicate(event);
+                }
+
+                boolean moved = false;
+
+                for(int p = 0; p < event.getPointerCount(); p++)
+                    moved |= onPointerSample(event.getPointerId(p), eventTime, event.getX(p), event.getY(p));
+
+                if(!moved)
+                    countDuplicate(event);
+
+                countSamples(arrivalMillis, historySize + 1);
+                break;
+            }
+        }
+    }
+
+    // To be called on the vsync which follows the received events
+    public void onFrame(long frameTimeMillis) {
+        if(mPendingEventTime < 0)
+            return;
+
+        mVsync.add(frameTimeMillis - mPendingEventTime);
+        mPendingEventTime = -1;
+    }
+
+    public boolean hasPendingEvents() {
+        return(mPendingEventTime >= 0);
+    }
+
+    private static boolean isValid(int id) {
+        return((id >= 0) && (id < MAX_POINTERS));
+    }
+
+    private void countSamples(long now, int count) {
+        if(now - mRateWindowStart >= RATE_WINDOW) {
+            mRate = (int) (mWindowSamples * 1000 / Math.max(now - mRateWindowStart, 1));
+            mRateWindowStart = now;
+            mWindowSamples = 0;
+        }
+
+        mWindowSamples += count;
+    }
+
+    // Returns true if the pointer moved
+    private boolean onPointerSample(int id, long when, float x, float y) {
+        if(!isValid(id) || !mDown[id])
+            return false;
+
+        long interval = when - mLastTime[id];
+        float avg = mAvgInterval[id];
+
+        if(avg <= 0)
+            mAvgInterval[id] = interval;
+        else {
+            if(interval > avg * DROP_FACTOR)
+                mDropped[id] += Math.round(interval / avg) - 1;
+
+            // The gaps are clamped, so that they do not skew the average but a lower rate is still
+            // tracked, instead of being counted as drops forever
+            mAvgInterval[id] += (Math.min(interval, avg * DROP_FACTOR) - avg) * AVG_WEIGHT;
+        }
+
+        boolean moved = (x != mLastX[id]) || (y != mLastY[id]);
+
+        mReceived[id]++;
+        mLastTime[id] = when;
+        mLastX[id] = x;
+        mLastY[id] = y;
+        return moved;
+    }
+
+    // A sample is duplicated if none of its pointers moved, as a still pointer is expected while
+    // the others move
+    private void countDuplicate(MotionEvent event) {
+        for(int p = 0; p < event.getPointerCount(); p++) {
+            int id = event.getPointerId(p);
+
+            if(isValid(id) && mDown[id])
+                mDuplicated[id]++;
+        }
+    }
+
+    private void appendPercentiles(StringBuilder sb, LatencyRing ring) {
+        int count = ring.mCount;
+
+        if(count == 0) {
+            sb.append("-");
+            return;
+        }
+
+        System.arraycopy(ring.mValues, 0, mSorted, 0, count);
+        Arrays.sort(mSorted, 0, count);
+
+        sb.append("p50 ").append(mSorted[count * 50 / 100])
+                .append(" p90 ").append(mSorted[count * 90 / 100])
+                .append(" p99 ").append(mSorted[count * 99 / 100])
+                .append(" max ").append(mSorted[count - 1]).append(" ms");
+    }
+
+    // Appends the stats as text lines to sb. Does not allocate as long as sb has enough capacity.
+    public void format(StringBuilder sb) {
+        sb.append("Rate: ").append(mRate).append(" samples/s\n");
+        sb.append("Arrival: ");
+        appendPercentiles(sb, mArrival);
+        sb.append("\nVsync: ");
+        appendPercentiles(sb, mVsync);
+        sb.append('\n');
+
+        for(int id = 0; id < MAX_POINTERS; id++) {
+            if(!mDown[id])
+                continue;
+
+            sb.append("Pointer ").append(id)
+                    .append(": rx ").append(mReceived[id])
+                    .append(", dropped ").append(mDropped[id])
+                    .append(", dup ").append(mDuplicated[id])
+                    .append(", interval ").append((int) mAvgInterval[id]).append(" ms\n");
+        }
+    }
+}
@@ -0,0 +1,232 @@
+/*
+ * This file is part of TouchInjector.
+ *
+ * TouchInjector is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * TouchInjector is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with TouchInjector.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ * Copyright 2021 - Emanuele Faranda
+ */
+
+package com.emanuelef.touchinjector;
+
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.Map;
+
+// Detects the injection stalls, e.g. a hung InputManager.injectInputEvent in Main or a blocking
+// socket write in the app, which would otherwise silently fill the queues. Each injection thread
+// registers a Stage and marks the begin and the end of its blocking calls. A checker thread flags
+// a stage busy for more than STALL_THRESHOLD: it writes the stages state, their last progress
+// events and the threads stacks to a dump file, then runs the stage recovery (e.g. reconnect), so
+// that the time from a stall to its recovery is bounded. Used by both the app and Main.
+public class InjectorWatchdog {
+    private static final long STALL_THRESHOLD = 500; // ms
+    private static final long CHECK_INTERVAL = 100; // ms
+    private static final int TRACE_SIZE = 32;
+    private static final String DUMP_NAME = "injector_stall.txt";
+
+    private static final ArrayList<Stage> mStages = new ArrayList<>();
+    private static Thread mChecker;
+    private static File mDumpDir;
+    private static Output mOutput;
+
+    // Where the stalls are reported, e.g. the log
+    public interface Output {
+        void print(String line);
+    }
+
+    public interface Probe {
+        // Describes the state of the stage, e.g. its queue depth. Called by the checker thread.
+        String describe();
+    }
+
+    public static class Stage {
+        private final String mName;
+        private final Probe mProbe;
+        private final Runnable mRecovery;
+
+        // Written by the stage thread only
+        private volatile long mBusySince; // ns, 0 when idle
+        private volatile long mLastProgress; // ns
+        private final long[] mTraceTimes = new long[TRACE_SIZE];
+        private final boolean[] mTraceBegin = new boolean[TRACE_SIZE];
+        private int mTraceHead;
+        private volatile boolean mStalled;
+        private long mStalledSince;
+
+        private Stage(String name, Probe probe, Runnable recovery) {
+            mName = name;
+            mProbe = probe;
+            mRecovery = recovery;
+            mLastProgress = System.nanoTime();
+        }
+
+        public void begin() {
+            long now = System.nanoTime();
+            trace(now, true);
+            mBusySince = now;
+        }
+
+        public void end() {
+            long now = System.nanoTime();
+            trace(now, false);
+            mBusySince = 0;
+            mLastProgress = now;
+
+            if(mStalled) {
+                mStalled = false;
+                log("Stage " + mName + " recovered after " + (now - mStalledSince) / 1000000 + " ms");
+            }
+        }
+
+        private void trace(long now, boolean begin) {
+            mTraceTimes[mTraceHead] = now;
+            mTraceBegin[mTraceHead] = begin;
+            mTraceHead = (mTraceHead + 1) % TRACE_SIZE;
+        }
+
+        private void dump(PrintWriter out, long now) {
+            long busySince = mBusySince;
+
+            out.print(mName + ": ");
+            out.print((busySince != 0) ? ("busy for " + (now - busySince) / 1000000 + " ms") : "idle");
+            out.print(", last progress " + (now - mLastProgress) / 1000000 + " ms ago");
+
+            if(mProbe != null)
+                out.print(", " + mProbe.describe());
+
+            out.println();
+
+            // The trace is written by the stage thread meanwhile, only used as a hint
+            for(int i = 0; i < TRACE_SIZE; i++) {
+                int idx = (mTraceHead + i) % TRACE_SIZE;
+                long time = mTraceTimes[idx];
+
+                if(time != 0)
+                    out.println("  -" + (now - time) / 1000 + " us " + (mTraceBegin[idx] ? "begin" : "end"));
+            }
+        }
+    }
+
+    // probe and recovery can be null. The recovery is run by the checker thread.
+    public static Stage register(String name, Probe probe, Runnable recovery) {
+        Stage stage = new Stage(name, probe, recovery);
+
+        synchronized (mStages) {
+            mStages.add(stage);
+        }
+
+        return stage;
+    }
+
+    public static void unregister(Stage stage) {
+        synchronized (mStages) {
+            mStages.remove(stage);
+        }
+    }
+
+    // Starts checking the registered stages. The dumps are written to dumpDir.
+    public static synchronized void start(File dumpDir, Output output) {
+        if(mChecker != null)
+            return;
+
+        mDumpDir = dumpDir;
+        mOutput = output;
+        mChecker = new Thread(InjectorWatchdog::runChecker, "InjectorWatchdog");
+        mChecker.setDaemon(true);
+        mChecker.start();
+    }
+
+    public static synchronized void stop() {
+        if(mChecker == null)
+            return;
+
+        mChecker.interrupt();
+        mChecker = null;
+    }
+
+    private static synchronized void log(String line) {
+        if(mOutput != null)
+            mOutput.print(line);
+    }
+
+    private static void runChecker() {
+        ArrayList<Stage> stages = new ArrayList<>();
+
+        while(!Thread.currentThread().isInterrupted()) {
+            try {
+                Thread.sleep(CHECK_INTERVAL);
+            } catch (InterruptedException e) {
+                break;
+            }
+
+            stages.clear();
+
+            synchronized (mStages) {
+                stages.addAll(mStages);
+            }
+
+            long now = System.nanoTime();
+
+            for(Stage stage: stages) {
+                long busySince = stage.mBusySince;
+
+                if((busySince == 0) || stage.mStalled || ((now - busySince) / 1000000 < STALL_THRESHOLD))
+                    continue;
+
+                // Reported once per stall
+                stage.mStalledSince = busySince;
+                stage.mStalled = true;
+
+                log("Stage " + stage.mName + " stalled for " + (now - busySince) / 1000000 + " ms, dumping to " +
+                        new File(mDumpDir, DUMP_NAME));
+                writeDump(stage, stages, now);
+
+                if(stage.mRecovery != null) {
+                    log("Recovering " + stage.mName);
+                    stage.mRecovery.run();
+                }
+            }
+        }
+    }
+
+    private static void writeDump(Stage stalled, ArrayList<Stage> stages, long now) {
+        try(PrintWriter out = new PrintWriter(new FileWriter(new File(mDumpDir, DUMP_NAME)))) {
+            out.println("Stall of " + stalled.mName + " detected on " + new Date());
+            out.println();
+            out.println("== Stages ==");
+
+            for(Stage stage: stages)
+                stage.dump(out, now);
+
+            out.println();
+            out.println("== Threads ==");
+
+            for(Map.Entry<Thread, StackTraceElement[]> entry: Thread.getAllStackTraces().entrySet()) {
+                Thread thread = entry.getKey();
+                out.println("\"" + thread.getName() + "\" " + thread.getState());
+
+                for(StackTraceElement frame: entry.getValue())
+                    out.println("  at " + frame);
+
+                out.println();
+            }
+        } catch (IOException e) {
+            log("Cannot write the dump: " + e.getMessage());
+        }
+    }
+}
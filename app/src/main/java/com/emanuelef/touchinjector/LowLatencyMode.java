@@ -0,0 +1,193 @@
+/*
+ * This file is part of TouchInjector.
+ *
+ * TouchInjector is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * TouchInjector is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with TouchInjector.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ * Copyright 2021 - Emanuele Faranda
+ */
+
+package com.emanuelef.touchinjector;
+
+import android.os.Process;
+
+import java.io.FileWriter;
+import java.io.IOException;
+import java.util.ArrayList;
+
+// Opt-in scheduling mode for the input pipeline threads (the SocketIME reader, the injector
+// threads, the jitter buffer playout and the Main server threads), which at the default priority get
+// preempted by the game rendering. When enabled, the registered threads are raised to the
+// urgent display priority (display if not permitted) and moved to the top-app cpuset, if the
+// platform allows it, which is usually only the case for root.
+// The threads which sleep until a deadline report how late they wake up, so that the benefit can
+// be verified on each device.
+public class LowLatencyMode {
+    private static final String CPUSET_TASKS = "/dev/cpuset/top-app/tasks";
+    private static final long LATE_WAKE_NS = 1000000;
+
+    private static final ArrayList<PipelineThread> mThreads = new ArrayList<>();
+    private static boolean mEnabled;
+
+    // Where the threads stats are printed, e.g. the log
+    public interface Output {
+        void print(String line);
+    }
+
+    public static class PipelineThread {
+        private final String mName;
+        private final int mTid;
+        private int mOldPriority;
+        private String mMode = "default";
+
+        // Accessed with the object lock held
+        private long mNumWakes;
+        private long mTotalDelay;
+        private long mMaxDelay;
+        private long mNumLate;
+
+        private PipelineThread(String name, int tid) {
+            mName = name;
+            mTid = tid;
+        }
+
+        // Called by the thread after a timed wait for deadline (System.nanoTime()) ended. The
+        // early wake ups, e.g. for new events, are not counted.
+        public void onWake(long deadline) {
+            long delay = System.nanoTime() - deadline;
+
+            if(delay < 0)
+                return;
+
+            synchronized (this) {
+                mNumWakes++;
+                mTotalDelay += delay;
+                mMaxDelay = Math.max(mMaxDelay, delay);
+
+                if(delay >= LATE_WAKE_NS)
+                    mNumLate++;
+            }
+        }
+
+        synchronized String dumpStats() {
+            return mName + " [" + mMode + "]: wakes=" + mNumWakes +
+                    ", avg delay=" + ((mNumWakes > 0) ? (mTotalDelay / mNumWakes / 1000) : 0) + " us" +
+                    ", max=" + (mMaxDelay / 1000) + " us, late=" + mNumLate;
+        }
+
+        synchronized void resetStats() {
+            mNumWakes = 0;
+            mTotalDelay = 0;
+            mMaxDelay = 0;
+            mNumLate = 0;
+        }
+
+        private void raise() {
+            try {
+                mOldPriority = Process.getThreadPriority(mTid);
+            } catch (IllegalArgumentException e) {
+                return; // thread gone
+            }
+
+            if(setPriority(Process.THREAD_PRIORITY_URGENT_DISPLAY))
+                mMode = "urgent_display";
+            else if(setPriority(Process.THREAD_PRIORITY_DISPLAY))
+                mMode = "display";
+            else
+                mMode = "default";
+
+            if(joinCpuset())
+                mMode += "+top_app";
+        }
+
+        private void restore() {
+            setPriority(mOldPriority);
+            mMode = "default";
+        }
+
+        private boolean setPriority(int priority) {
+            try {
+                Process.setThreadPriority(mTid, priority);
+                return(Process.getThreadPriority(mTid) == priority);
+            } catch (IllegalArgumentException | SecurityException e) {
+                return false;
+            }
+        }
+
+        private boolean joinCpuset() {
+            try(FileWriter writer = new FileWriter(CPUSET_TASKS)) {
+                writer.write(Integer.toString(mTid));
+                return true;
+            } catch (IOException e) {
+                return false;
+            }
+        }
+    }
+
+    // Must be called by the thread itself, e.g. at the start of its run method
+    public static PipelineThread register(String name) {
+        PipelineThread thread = new PipelineThread(name, Process.myTid());
+
+        synchronized (mThreads) {
+            mThreads.add(thread);
+
+            if(mEnabled)
+                thread.raise();
+        }
+
+        return thread;
+    }
+
+    public static void unregister(PipelineThread thread) {
+        synchronized (mThreads) {
+            mThreads.remove(thread);
+        }
+    }
+
+    public static boolean isEnabled() {
+        synchronized (mThreads) {
+            return mEnabled;
+        }
+    }
+
+    // The wake up delays are reset, to compare them with the ones in the other mode
+    public static void setEnabled(boolean enabled, Output output) {
+        synchronized (mThreads) {
+            output.print("Low latency mode " + (enabled ? "on" : "off") + ", stats of the previous mode:");
+
+            for(PipelineThread thread: mThreads) {
+                output.print(thread.dumpStats());
+                thread.resetStats();
+            }
+
+            if(enabled == mEnabled)
+                return;
+
+            mEnabled = enabled;
+
+            for(PipelineThread thread: mThreads) {
+                if(enabled)
+                    thread.raise();
+                else
+                    thread.restore();
+            }
+        }
+    }
+
+    public static void dumpStats(Output output) {
+        synchronized (mThreads) {
+            for(PipelineThread thread: mThreads)
+                output.print(thread.dumpStats());
+        }
+    }
+}
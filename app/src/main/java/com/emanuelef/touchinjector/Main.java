@@ -21,23 +21,36 @@ package com.emanuelef.touchinjector;
 
 import android.annotation.SuppressLint;
 import android.hardware.input.InputManager;
+import android.os.Parcel;
 import android.view.InputEvent;
+import android.view.MotionEvent;
 
 import java.io.DataInputStream;
+import java.io.File;
 import java.io.IOException;
 import java.io.InputStream;
 import java.lang.reflect.InvocationTargetException;
 import java.lang.reflect.Method;
 import java.net.ServerSocket;
 import java.net.Socket;
+import java.util.concurrent.Semaphore;
 
 public class Main {
+    private static final long ALLOC_STATS_INTERVAL = 5000; // ms
+    private static final String WATCHDOG_DUMP_DIR = "/data/local/tmp";
+
+    // A handler aborted by the watchdog keeps its slot until injectInputEvent returns, if ever, so
+    // this bounds the threads leaked by the stalls
+    private static final int MAX_HANDLERS = 8;
+    private static final Semaphore mHandlerSlots = new Semaphore(MAX_HANDLERS);
+
     private static class EventInjector {
         // See hardware/input/InputManager.java
         private static final int INJECT_INPUT_EVENT_MODE_WAIT_FOR_RESULT = 1; // async
         private static final int INJECT_INPUT_EVENT_MODE_WAIT_FOR_FINISH = 2; // sync
 
         Method injectInputEvent;
+        Method setDisplayId;
         InputManager im;
 
         @SuppressLint("DiscouragedPrivateApi")
@@ -48,6 +61,12 @@ public class Main {
 
             methodName = "injectInputEvent";
             injectInputEvent = InputManager.class.getMethod(methodName, InputEvent.class, Integer.TYPE);
+
+            try {
+                setDisplayId = InputEvent.class.getMethod("setDisplayId", Integer.TYPE);
+            } catch (NoSuchMethodException e) {
+                setDisplayId = null;
+            }
         }
 
         void injectEvent(InputEvent ev) {
@@ -59,6 +78,120 @@ public class Main {
                 e.printStackTrace();
             }
         }
+
+        // Changes the display which the event targets, only available on Android 10+
+        void setDisplayId(InputEvent ev, int displayId) {
+            if(setDisplayId == null)
+                return;
+
+            try {
+                setDisplayId.invoke(ev, displayId);
+            } catch (IllegalAccessException | InvocationTargetException e) {
+                e.printStackTrace();
+            }
+        }
+    }
+
+    // Injects the events of a single InputInjector, which targets a specific display
+    private static class ClientHandler implements Runnable {
+        private final EventInjector mInjector;
+        private final Socket mClient;
+        private volatile boolean mAborted;
+
+        ClientHandler(EventInjector injector, Socket client) {
+            mInjector = injector;
+            mClient = client;
+        }
+
+        // Called by the watchdog when injectInputEvent hangs. The client reconnects and is served by
+        // a new thread, this one exits once unblocked.
+        private void abort() {
+            mAborted = true;
+
+            try {
+                mClient.close();
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+        }
+
+        @Override
+        public void run() {
+            InjectorWatchdog.Stage watchdog = InjectorWatchdog.register("client-" + mClient.getPort(),
+                    null, this::abort);
+            LowLatencyMode.PipelineThread sched = LowLatencyMode.register("client-" + mClient.getPort());
+            Parcel parcel = Parcel.obtain();
+
+            try {
+                InputStream input = mClient.getInputStream();
+                DataInputStream inputStream = new DataInputStream(input);
+                byte[] evBytes = new byte[1024];
+
+                // Handshake: the target display of the events
+                int displayId = inputStream.readInt();
+                Log_d("Client " + mClient + " targets display " + displayId);
+
+                if((displayId != 0) && (mInjector.setDisplayId == null))
+                    Log_d("Display targeting is not supported on this device");
+
+                while(true) {
+                    int size = inputStream.readInt();
+
+                    // Measured after the size is read, to exclude the wait for the next event
+                    AllocStats.UNMARSHAL.begin();
+
+                    if(size > evBytes.length)
+                        evBytes = new byte[size];
+
+                    inputStream.readFully(evBytes, 0, size);
+
+                    InputEvent obj = ParcelableUtil.unmarshall(evBytes, size, parcel, InputEvent.CREATOR);
+
+                    if(displayId != 0)
+                        mInjector.setDisplayId(obj, displayId);
+
+                    AllocStats.UNMARSHAL.end();
+
+                    // Stale after the abort, the client reconnects to a new handler
+                    if(mAborted) {
+                        Log_d("Client " + mClient + " aborted, dropping its event");
+
+                        if(obj instanceof MotionEvent)
+                            ((MotionEvent) obj).recycle();
+                        break;
+                    }
+
+                    AllocStats.INJECT.begin();
+                    watchdog.begin();
+
+                    try {
+                        mInjector.injectEvent(obj);
+                    } finally {
+                        watchdog.end();
+                    }
+
+                    // MotionEvents are obtained from a pool when unparceled, give them back.
+                    // The injection copies the event, so it can be recycled right away.
+                    if(obj instanceof MotionEvent)
+                        ((MotionEvent) obj).recycle();
+
+                    AllocStats.INJECT.end();
+                }
+            } catch (IOException e) {
+                Log_d("Client " + mClient + " disconnected: " + e.getMessage());
+            } finally {
+                InjectorWatchdog.unregister(watchdog);
+                LowLatencyMode.unregister(sched);
+                mHandlerSlots.release();
+                parcel.recycle();
+
+                try {
+                    mClient.close();
+                } catch (IOException e) {
+                    e.printStackTrace();
+                }
+            }
+        }
     }
 
     private static void Log_d(String msg) {
@@ -67,9 +200,20 @@ public class Main {
 
     // run via adb with:
     // CLASSPATH=`pm path com.emanuelef.touchinjector` app_process /data/local/tmp com.emanuelef.touchinjector.Main
+    // Pass --alloc-stats to print the allocation and GC stats of the injection, --low-latency to
+    // raise the priority of the injection threads, see LowLatencyMode
     public static void main(String[] args) {
         EventInjector injector;
 
+        for(String arg: args) {
+            if(arg.equals("--alloc-stats"))
+                AllocStats.start(ALLOC_STATS_INTERVAL, Main::Log_d);
+            else if(arg.equals("--low-latency"))
+                LowLatencyMode.setEnabled(true, Main::Log_d);
+        }
+
+        InjectorWatchdog.start(new File(WATCHDOG_DUMP_DIR), Main::Log_d);
+
         try {
             injector = new EventInjector();
         } catch (Exception e) {
@@ -79,28 +223,26 @@ public class Main {
         }
 
         ServerSocket mSocket;
-        Socket mClient;
 
         Log_d("Waiting for the client app to connect...");
 
         try {
             mSocket = new ServerSocket(7171);
-            mClient = mSocket.accept();
-
-            Log_d("Client accepted: " + mClient);
-
-            InputStream input = mClient.getInputStream();
-            DataInputStream inputStream = new DataInputStream(input);
 
+            // Each InputInjector instance of the app connects separately and is served concurrently
             while(true) {
-                int size = inputStream.readInt();
-                byte[] evBytes = new byte[size];
+                Socket client = mSocket.accept();
+                client.setTcpNoDelay(true);
 
-                inputStream.readFully(evBytes);
+                Log_d("Client accepted: " + client);
 
-                InputEvent obj = ParcelableUtil.unmarshall(evBytes, InputEvent.CREATOR);
+                if(!mHandlerSlots.tryAcquire()) {
+                    Log_d("Too many stalled clients, rejecting " + client);
+                    client.close();
+                    continue;
+                }
 
-                injector.injectEvent(obj);
+                new Thread(new ClientHandler(injector, client)).start();
             }
         } catch (IOException e) {
             e.printStackTrace();
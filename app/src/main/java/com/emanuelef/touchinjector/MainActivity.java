@@ -21,16 +21,22 @@ package com.emanuelef.touchinjector;
 
 import androidx.appcompat.app.AppCompatActivity;
 
+import android.app.AlertDialog;
 import android.content.Intent;
+import android.graphics.PointF;
 import android.os.Bundle;
 import android.util.Log;
 import android.widget.Button;
+import android.widget.Toast;
 
 import com.emanuelef.touchinjector.ime.SocketIME;
 
 public class MainActivity extends AppCompatActivity {
     private static final String TAG = "MainActivity";
     private Button mToggleService;
+    private Button mCalibrate;
+    private Button mBenchmark;
+    private DrawView mDrawView;
 
     @Override
     protected void onCreate(Bundle savedInstanceState) {
@@ -52,6 +58,56 @@ public class MainActivity extends AppCompatActivity {
                 mToggleService.setText(R.string.stop_service);
             }
         });
+
+        mDrawView = findViewById(R.id.draw_view);
+        mCalibrate = findViewById(R.id.calibrate);
+        mCalibrate.setOnClickListener(v -> startCalibration());
+        mBenchmark = findViewById(R.id.benchmark);
+        mBenchmark.setOnClickListener(v -> startBenchmark());
+    }
+
+    // Probe in the center of the view, below the buttons
+    private PointF getProbePosition() {
+        int[] location = new int[2];
+        mDrawView.getLocationOnScreen(location);
+        return new PointF(location[0] + mDrawView.getWidth() / 2.f,
+                location[1] + mDrawView.getHeight() * 2 / 3.f);
+    }
+
+    // Only needs the Main server, a failure to inject is reported as a failed calibration
+    private void startCalibration() {
+        PointF probe = getProbePosition();
+
+        Log.d(TAG, "Starting calibration...");
+        mCalibrate.setEnabled(false);
+        mCalibrate.setText(R.string.calibrating);
+
+        new Calibrator(this, mDrawView, probe.x, probe.y, success -> {
+            mCalibrate.setEnabled(true);
+            mCalibrate.setText(R.string.calibrate);
+            Toast.makeText(this, success ? R.string.calibration_done : R.string.calibration_failed,
+                    Toast.LENGTH_LONG).show();
+        }).start();
+    }
+
+    // Uses a private injector, SocketIME is not needed
+    private void startBenchmark() {
+        PointF probe = getProbePosition();
+
+        Log.d(TAG, "Starting benchmark...");
+        mBenchmark.setEnabled(false);
+        mBenchmark.setText(R.string.benchmarking);
+
+        new Benchmark(mDrawView, probe.x, probe.y, report -> {
+            mBenchmark.setEnabled(true);
+            mBenchmark.setText(R.string.benchmark);
+
+            new AlertDialog.Builder(this)
+                    .setTitle(R.string.benchmark)
+                    .setMessage(report)
+                    .setPositiveButton(android.R.string.ok, null)
+                    .show();
+        }).start();
     }
 
     @Override
@@ -31,6 +31,15 @@ public class ParcelableUtil {
         return bytes;
     }
 
+    // Marshalls into a Parcel owned by the caller, which avoids obtaining a new one for each call.
+    // The parcel must not be shared across threads.
+    public static byte[] marshall(Parcelable parceable, Parcel parcel) {
+        parcel.setDataPosition(0);
+        parcel.setDataSize(0);
+        parceable.writeToParcel(parcel, 0);
+        return parcel.marshall();
+    }
+
     public static Parcel unmarshall(byte[] bytes) {
         Parcel parcel = Parcel.obtain();
         parcel.unmarshall(bytes, 0, bytes.length);
@@ -44,4 +53,12 @@ public class ParcelableUtil {
         parcel.recycle();
         return result;
     }
+
+    // Unmarshalls the first length bytes of a caller supplied buffer, reusing the caller Parcel.
+    // The parcel must not be shared across threads.
+    public static <T> T unmarshall(byte[] bytes, int length, Parcel parcel, Parcelable.Creator<T> creator) {
+        parcel.unmarshall(bytes, 0, length);
+        parcel.setDataPosition(0);
+        return creator.createFromParcel(parcel);
+    }
 }
\ No newline at end of file
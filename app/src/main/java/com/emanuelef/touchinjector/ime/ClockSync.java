@@ -0,0 +1,64 @@
+/*
+ * This file is part of TouchInjector.
+ *
+ * TouchInjector is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * TouchInjector is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with TouchInjector.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ * Copyright 2021 - Emanuele Faranda
+ */
+
+package com.emanuelef.touchinjector.ime;
+
+// Maps the timestamps of a remote clock to the local SystemClock.uptimeMillis() timebase.
+// The offset is the minimum observed (local receive time - remote time), which corresponds to the
+// fastest message. The min is allowed to slowly increase, to follow the drift between the clocks.
+// The mapped times keep the relative spacing of the remote samples, which is what the input
+// resampling needs, and are never later than the receive time.
+public class ClockSync {
+    private static final long DRIFT_PER_SAMPLE = 2; // us
+    private long mOffset;
+    private boolean mSynced;
+
+    public void reset() {
+        mSynced = false;
+    }
+
+    // Must be called with the remote timestamp of each received message, returns the mapped time
+    // in milliseconds
+    public long onRemoteTime(long remoteMicros) {
+        // System.nanoTime shares the CLOCK_MONOTONIC base of uptimeMillis, with a better resolution
+        long localMicros = System.nanoTime() / 1000;
+        long diff = localMicros - remoteMicros;
+
+        if(!mSynced || (diff < mOffset + DRIFT_PER_SAMPLE))
+            mOffset = diff;
+        else
+            mOffset += DRIFT_PER_SAMPLE;
+
+        mSynced = true;
+        return toLocalMillis(remoteMicros);
+    }
+
+    public boolean isSynced() {
+        return mSynced;
+    }
+
+    public long toLocalMillis(long remoteMicros) {
+        return (remoteMicros + mOffset) / 1000;
+    }
+
+    // Local - remote, in microseconds
+    public long getOffset() {
+        return mOffset;
+    }
+}
@@ -0,0 +1,68 @@
+/*
+ * This file is part of TouchInjector.
+ *
+ * TouchInjector is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * TouchInjector is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with TouchInjector.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ * Copyright 2021 - Emanuele Faranda
+ */
+
+package com.emanuelef.touchinjector.ime;
+
+// Radial deadzone. The values outside the deadzone are rescaled as if they started from its edge.
+// Samples which stay in the deadzone are suppressed.
+public class DeadzoneFilter implements StickFilter {
+    private final float mDeadzone;
+    private boolean mInDeadzone;
+
+    public DeadzoneFilter(float deadzone) {
+        mDeadzone = deadzone;
+        reset();
+    }
+
+    @Override
+    public boolean filter(long when, float[] xy) {
+        float hypot = (float) Math.hypot(xy[0], xy[1]);
+
+        if(hypot <= mDeadzone) {
+            xy[0] = 0;
+            xy[1] = 0;
+
+            boolean wasInDeadzone = mInDeadzone;
+            mInDeadzone = true;
+            return !wasInDeadzone;
+        }
+
+        float scale = Math.min((hypot - mDeadzone) / (1 - mDeadzone), 1) / hypot;
+        xy[0] *= scale;
+        xy[1] *= scale;
+        mInDeadzone = false;
+        return true;
+    }
+
+    @Override
+    public boolean isSettled() {
+        return true;
+    }
+
+    @Override
+    public void reset() {
+        // the next sample in the deadzone must pass to release the stick
+        mInDeadzone = false;
+    }
+
+    @Override
+    public String getName() {
+        return "deadzone";
+    }
+}
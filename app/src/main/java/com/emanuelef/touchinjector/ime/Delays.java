@@ -0,0 +1,88 @@
+/*
+ * This file is part of TouchInjector.
+ *
+ * TouchInjector is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * TouchInjector is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with TouchInjector.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ * Copyright 2021 - Emanuele Faranda
+ */
+
+package com.emanuelef.touchinjector.ime;
+
+import android.content.Context;
+import android.content.SharedPreferences;
+import android.os.Build;
+import android.util.Log;
+
+// Delays (ms) the device needs to reliably register the injected events. The defaults were tuned
+// by hand on a single device, see Calibrator for how they are measured on the current one.
+// The values are stored per build fingerprint, so that a system update triggers a new calibration.
+public class Delays {
+    private static final String TAG = "Delays";
+    private static final String PREFS_NAME = "delays";
+
+    // After a DOWN, before moving or releasing the same pointer
+    public static volatile long downToMove = 10;
+    // After a MOVE, before releasing the pointer
+    public static volatile long moveToUp = 20;
+    // After an UP, before the next event on the same pointer
+    public static volatile long upToDown = 20;
+    // Between consecutive events
+    public static volatile long interEvent = 1;
+
+    // Game UI animation (not measurable on the device), e.g. the pins selector
+    public static final long UI_ANIMATION = 50;
+
+    // Release a pointer and press it again
+    public static long redown() {
+        return upToDown + downToMove;
+    }
+
+    // Let the game register a position before changing it
+    public static long settle() {
+        return moveToUp + upToDown + downToMove;
+    }
+
+    public static void load(Context ctx) {
+        SharedPreferences prefs = ctx.getSharedPreferences(PREFS_NAME, Context.MODE_PRIVATE);
+
+        if(!Build.FINGERPRINT.equals(prefs.getString("fingerprint", null))) {
+            Log.d(TAG, "Device not calibrated, using the default delays");
+            return;
+        }
+
+        downToMove = prefs.getLong("down_to_move", downToMove);
+        moveToUp = prefs.getLong("move_to_up", moveToUp);
+        upToDown = prefs.getLong("up_to_down", upToDown);
+        interEvent = prefs.getLong("inter_event", interEvent);
+
+        Log.d(TAG, "Loaded: " + dump());
+    }
+
+    public static void save(Context ctx) {
+        ctx.getSharedPreferences(PREFS_NAME, Context.MODE_PRIVATE).edit()
+                .putString("fingerprint", Build.FINGERPRINT)
+                .putLong("down_to_move", downToMove)
+                .putLong("move_to_up", moveToUp)
+                .putLong("up_to_down", upToDown)
+                .putLong("inter_event", interEvent)
+                .apply();
+
+        Log.d(TAG, "Saved: " + dump());
+    }
+
+    public static String dump() {
+        return "downToMove=" + downToMove + ", moveToUp=" + moveToUp +
+                ", upToDown=" + upToDown + ", interEvent=" + interEvent;
+    }
+}
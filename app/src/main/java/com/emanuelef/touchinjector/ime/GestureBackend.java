@@ -0,0 +1,259 @@
+/*
+ * This file is part of TouchInjector.
+ *
+ * TouchInjector is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * TouchInjector is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with TouchInjector.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ * Copyright 2021 - Emanuele Faranda
+ */
+
+package com.emanuelef.touchinjector.ime;
+
+import android.accessibilityservice.AccessibilityService;
+import android.accessibilityservice.GestureDescription;
+import android.graphics.Path;
+import android.os.Build;
+import android.os.Handler;
+import android.os.Looper;
+import android.util.Log;
+import android.util.SparseArray;
+import android.view.MotionEvent;
+
+import androidx.annotation.RequiresApi;
+
+// Injects the events as AccessibilityService gestures, which need neither the Main server nor root.
+// Each pointer is a stroke, continued (willContinue) by the next gesture so that it stays down.
+// Only one gesture can be in flight: the moves received in the meanwhile are batched into the
+// strokes paths of the next one. A continued gesture must contain exactly the strokes of the
+// previous one, so a new pointer requires to release all the others and to press them again.
+// Requires Android 8.0+ (continued strokes) and the TouchAccessibilityService to be enabled.
+@RequiresApi(Build.VERSION_CODES.O)
+public class GestureBackend implements InjectionBackend {
+    private static final String TAG = "GestureBackend";
+    private static final long STROKE_DURATION = 1; // ms, the min allowed
+
+    private static class Stroke {
+        final Path mPath = new Path();
+        GestureDescription.StrokeDescription mDesc; // the last dispatched one, null if not started
+        float mX;
+        float mY;
+        boolean mHasPoints; // mPath contains points not dispatched yet
+        boolean mUp;
+    }
+
+    // Accessed with the object lock held, from the injector thread and the main thread callbacks
+    private final SparseArray<Stroke> mStrokes = new SparseArray<>();
+    private final Handler mHandler = new Handler(Looper.getMainLooper());
+    private boolean mInFlight;
+    private boolean mRestart;
+    private long mNumGestures;
+    private long mNumCancelled;
+    private long mNumDropped;
+
+    private final AccessibilityService.GestureResultCallback mCallback =
+            new AccessibilityService.GestureResultCallback() {
+        @Override
+        public void onCompleted(GestureDescription gestureDescription) {
+            onGestureDone(false);
+        }
+
+        @Override
+        public void onCancelled(GestureDescription gestureDescription) {
+            onGestureDone(true);
+        }
+    };
+
+    @Override
+    public synchronized void inject(MotionEvent event) {
+        switch(event.getActionMasked()) {
+            case MotionEvent.ACTION_DOWN:
+            case MotionEvent.ACTION_POINTER_DOWN: {
+                int idx = event.getActionIndex();
+                Stroke stroke = new Stroke();
+
+                stroke.mX = event.getX(idx);
+                stroke.mY = event.getY(idx);
+                stroke.mPath.moveTo(stroke.mX, stroke.mY);
+                stroke.mHasPoints = true;
+
+                if(hasContinuedStrokes())
+                    mRestart = true;
+
+                mStrokes.put(event.getPointerId(idx), stroke);
+                break;
+            }
+            case MotionEvent.ACTION_MOVE:
+                for(int i = 0; i < event.getPointerCount(); i++)
+                    addPoint(mStrokes.get(event.getPointerId(i)), event.getX(i), event.getY(i));
+                break;
+            case MotionEvent.ACTION_UP:
+            case MotionEvent.ACTION_POINTER_UP: {
+                int idx = event.getActionIndex();
+                Stroke stroke = mStrokes.get(event.getPointerId(idx));
+
+                if(stroke != null) {
+                    addPoint(stroke, event.getX(idx), event.getY(idx));
+                    stroke.mUp = true;
+                }
+                break;
+            }
+            case MotionEvent.ACTION_CANCEL:
+                for(int i = 0; i < mStrokes.size(); i++)
+                    mStrokes.valueAt(i).mUp = true;
+                break;
+        }
+    }
+
+    @Override
+    public synchronized void flush() {
+        if(!mInFlight)
+            dispatch();
+    }
+
+    @Override
+    public synchronized void close() {
+        // Release the continued strokes, otherwise the pointers stay down
+        for(int i = 0; i < mStrokes.size(); i++)
+            mStrokes.valueAt(i).mUp = true;
+
+        if(!mInFlight)
+            dispatch();
+
+        Log.d(TAG, "Gestures: " + mNumGestures + ", cancelled " + mNumCancelled + ", dropped " + mNumDropped);
+    }
+
+    @Override
+    public String getName() {
+        return "accessibility_gesture";
+    }
+
+    private static void addPoint(Stroke stroke, float x, float y) {
+        if(stroke == null)
+            return;
+
+        // A continued path must start where the previous one ended
+        if(!stroke.mHasPoints) {
+            stroke.mPath.reset();
+            stroke.mPath.moveTo(stroke.mX, stroke.mY);
+            stroke.mHasPoints = true;
+        }
+
+        stroke.mPath.lineTo(x, y);
+        stroke.mX = x;
+        stroke.mY = y;
+    }
+
+    private boolean hasContinuedStrokes() {
+        for(int i = 0; i < mStrokes.size(); i++) {
+            if(mStrokes.valueAt(i).mDesc != null)
+                return true;
+        }
+
+        return false;
+    }
+
+    private boolean hasChanges() {
+        if(mRestart)
+            return true;
+
+        for(int i = 0; i < mStrokes.size(); i++) {
+            Stroke stroke = mStrokes.valueAt(i);
+
+            if((stroke.mDesc == null) || stroke.mHasPoints || stroke.mUp)
+                return true;
+        }
+
+        return false;
+    }
+
+    private void dispatch() {
+        if(!hasChanges())
+            return;
+
+        TouchAccessibilityService service = TouchAccessibilityService.getInstance();
+
+        if(service == null) {
+            mNumDropped++;
+            mStrokes.clear();
+            mRestart = false;
+            return;
+        }
+
+        GestureDescription.Builder builder = new GestureDescription.Builder();
+        boolean restart = mRestart;
+        int numStrokes = 0;
+
+        mRestart = false;
+
+        // All the continued strokes must be part of the gesture, also the ones which did not move
+        for(int i = 0; i < mStrokes.size(); i++) {
+            Stroke stroke = mStrokes.valueAt(i);
+
+            // The new strokes start after the continued ones are released
+            if(restart && (stroke.mDesc == null))
+                continue;
+
+            addPoint(stroke, stroke.mX, stroke.mY);
+
+            boolean willContinue = !stroke.mUp && !restart;
+
+            if(stroke.mDesc == null)
+                stroke.mDesc = new GestureDescription.StrokeDescription(stroke.mPath, 0, STROKE_DURATION, willContinue);
+            else
+                stroke.mDesc = stroke.mDesc.continueStroke(stroke.mPath, 0, STROKE_DURATION, willContinue);
+
+            builder.addStroke(stroke.mDesc);
+            stroke.mHasPoints = false;
+            numStrokes++;
+
+            // Press it again on the next gesture
+            if(!willContinue)
+                stroke.mDesc = null;
+        }
+
+        removeReleased();
+
+        if(numStrokes == 0)
+            return;
+
+        if(service.dispatchGesture(builder.build(), mCallback, mHandler)) {
+            mInFlight = true;
+            mNumGestures++;
+        } else {
+            Log.w(TAG, "dispatchGesture failed");
+            mNumDropped++;
+            mStrokes.clear();
+        }
+    }
+
+    private void removeReleased() {
+        for(int i = mStrokes.size() - 1; i >= 0; i--) {
+            if(mStrokes.valueAt(i).mUp)
+                mStrokes.removeAt(i);
+        }
+    }
+
+    private synchronized void onGestureDone(boolean cancelled) {
+        mInFlight = false;
+
+        if(cancelled) {
+            // The system released all the pointers, press the ones still down again
+            mNumCancelled++;
+
+            for(int i = 0; i < mStrokes.size(); i++)
+                mStrokes.valueAt(i).mDesc = null;
+        }
+
+        dispatch();
+    }
+}
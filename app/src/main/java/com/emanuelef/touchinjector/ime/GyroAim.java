@@ -0,0 +1,108 @@
+/*
+ * This file is part of TouchInjector.
+ *
+ * TouchInjector is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * TouchInjector is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with TouchInjector.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ * Copyright 2021 - Emanuele Faranda
+ */
+
+package com.emanuelef.touchinjector.ime;
+
+import android.graphics.PointF;
+
+// Integrates the gyroscope angular velocity into a relative aim offset, in stick units.
+// The samples can arrive at 200-1000 Hz, so the output is rate capped: addSample only reports a
+// new offset once per output interval, the samples in between are just accumulated. This relies
+// on the gyro streaming continuously, as the sensors do, so that the last change is reported by
+// one of the next samples.
+// The axes follow the Android sensors convention (rad/s) for a controller held flat: the yaw (z)
+// aims horizontally, the pitch (x) aims vertically.
+class GyroAim {
+    private static final long MAX_DT = 20000000; // ns, longer gaps are not integrated
+
+    private final float mSensitivity;
+    private final float mDeadband;
+    private final long mOutputInterval;
+    private final PointF mOffset = new PointF();
+    private long mLastSample;
+    private long mLastOutput;
+    private boolean mChanged;
+    private long mNumSamples;
+    private long mNumOutputs;
+
+    // sensitivity: stick units per radian
+    // deadband: angular velocity (rad/s) under which the sensor noise is ignored
+    // outputInterval: min interval (ns) between the reported offsets
+    GyroAim(float sensitivity, float deadband, long outputInterval) {
+        mSensitivity = sensitivity;
+        mDeadband = deadband;
+        mOutputInterval = outputInterval;
+    }
+
+    // timeNanos: the sample time, in any monotonic timebase
+    // Returns true if the offset changed and a new output is due
+    boolean addSample(long timeNanos, float gx, float gy, float gz) {
+        mNumSamples++;
+
+        if(mLastSample != 0) {
+            long dt = timeNanos - mLastSample;
+
+            if((dt > 0) && (dt <= MAX_DT)) {
+                float secs = dt / 1e9f;
+                float dx = (Math.abs(gz) > mDeadband) ? -gz * secs * mSensitivity : 0;
+                float dy = (Math.abs(gx) > mDeadband) ? gx * secs * mSensitivity : 0;
+
+                if((dx != 0) || (dy != 0)) {
+                    mOffset.set(mOffset.x + dx, mOffset.y + dy);
+                    clampToUnit(mOffset);
+                    mChanged = true;
+                }
+            }
+        }
+
+        mLastSample = timeNanos;
+
+        if(!mChanged || (timeNanos - mLastOutput < mOutputInterval))
+            return false;
+
+        mLastOutput = timeNanos;
+        mChanged = false;
+        mNumOutputs++;
+        return true;
+    }
+
+    // Adds the current offset to the stick position pos
+    void apply(PointF pos) {
+        pos.set(pos.x + mOffset.x, pos.y + mOffset.y);
+        clampToUnit(pos);
+    }
+
+    void reset() {
+        mOffset.set(0, 0);
+        mLastSample = 0;
+        mLastOutput = 0;
+        mChanged = false;
+    }
+
+    String dumpStats() {
+        return "samples=" + mNumSamples + ", outputs=" + mNumOutputs;
+    }
+
+    private static void clampToUnit(PointF pos) {
+        float len = (float) Math.hypot(pos.x, pos.y);
+
+        if(len > 1)
+            pos.set(pos.x / len, pos.y / len);
+    }
+}
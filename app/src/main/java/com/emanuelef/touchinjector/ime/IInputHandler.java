@@ -20,7 +20,26 @@
 package com.emanuelef.touchinjector.ime;
 
 public interface IInputHandler {
+    // How long after the last stick sample settleSticks must be called
+    long STICK_SETTLE_DELAY = 100; // ms
+
     void onKey(GamepadKey key, boolean pressed);
     void onStickMove(boolean isLeftJoycon, float x, float y);
+
+    // Process count stick samples, in chronological order, as a single unit
+    void onStickBatch(boolean isLeftJoycon, float[] xs, float[] ys, long[] times, int count);
+
+    // Angular velocity (rad/s) of the controller, timeNanos in any monotonic timebase
+    void onGyro(long timeNanos, float gx, float gy, float gz);
+
+    // Binds the key to the turbo, which auto-fires while it's held. Pass 0 to unbind it.
+    void setTurbo(GamepadKey key, float rateHz);
+
+    // Shapes the response of the stick, null for the linear one
+    void setResponseCurve(boolean isLeftJoycon, ResponseCurve curve);
+    // Filters again the last stick samples, so that the filtered positions reach them when the
+    // sticks stop sending samples, e.g. after a flick
+    void settleSticks();
+
     void reset();
 }
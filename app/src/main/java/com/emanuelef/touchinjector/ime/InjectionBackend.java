@@ -0,0 +1,37 @@
+/*
+ * This file is part of TouchInjector.
+ *
+ * TouchInjector is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * TouchInjector is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with TouchInjector.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ * Copyright 2021 - Emanuele Faranda
+ */
+
+package com.emanuelef.touchinjector.ime;
+
+import android.view.MotionEvent;
+
+// The sink of the events built by an InputInjector. All the methods are called on the injector
+// thread, see InputInjector.setBackend.
+public interface InjectionBackend {
+    // The event is recycled by the caller once this returns
+    void inject(MotionEvent event);
+
+    // Called when the injector has no due events, i.e. before waiting for the next ones. The
+    // backends which batch the events send them now.
+    void flush();
+
+    void close();
+
+    String getName();
+}
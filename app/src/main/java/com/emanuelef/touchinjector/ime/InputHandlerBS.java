@@ -20,15 +20,50 @@
 package com.emanuelef.touchinjector.ime;
 
 import android.graphics.PointF;
+import android.os.SystemClock;
+import android.util.Log;
+
+import java.util.EnumMap;
 
 public class InputHandlerBS implements IInputHandler {
+    private static final String TAG = "InputHandlerBS";
     private boolean mIsSpecial;
     private final InputInjector mInjector;
     private final VirtualStick mLeftStick;
     private final VirtualStick mFireStick;
     private final VirtualStick mSpecialStick;
     private final VirtualStick mGadgetStick;
+    private final PointF mStickPos;
+    private final float[] mSample;
+    private long mSourceDelay; // ms, from the source time of the last stick sample to its handling
+    private final StickFilterChain mLeftFilters;
+    private final StickFilterChain mRightFilters;
+    private final GyroAim mGyroAim;
+    private final PointF mRightPos;
+    private final EnumMap<GamepadKey, Float> mTurboRates;
+    private GamepadKey mTurboKey;
     private final int EMOJI_POINTER = 2;
+    private final int TURBO_POINTER = 3;
+
+    // Latency (ms) compensated on the aiming sticks until it's measured, see
+    // InputInjector.getSourceLatency
+    private static final long AIM_PREDICTION_MS = 12;
+    private static final long MAX_AIM_PREDICTION_MS = 40;
+
+    // Sticks filtering, on top of the deadzone applied by the host
+    private static final float STICK_DEADZONE = 0.02f;
+    private static final float STICK_MIN_CUTOFF = 3.0f; // Hz
+    private static final float STICK_BETA = 5.0f; // Hz per stick unit/s, a flick is barely filtered
+    private static final float STICK_DERIVATE_CUTOFF = 1.0f; // Hz
+    private static final int STICK_MIN_SCREEN_DELTA = 2; // px
+
+    // Gyro aiming, relative to the right stick position
+    private static final float GYRO_SENSITIVITY = 1.5f; // stick units per radian
+    private static final float GYRO_DEADBAND = 0.02f; // rad/s
+    private static final long GYRO_OUTPUT_INTERVAL = 8000000; // ns
+
+    // Auto-fire on the fire button
+    private static final float TURBO_RATE = 8; // Hz
 
     /* Pins coordinates */
     private static class Pins {
@@ -41,15 +76,36 @@ public class InputHandlerBS implements IInputHandler {
     }
 
     InputHandlerBS() {
-        mInjector = InputInjector.getInstance();
+        this(InputInjector.getInstance());
+    }
+
+    InputHandlerBS(InputInjector injector) {
+        mInjector = injector;
 
         /* Analog sticks coordinates */
-        mLeftStick = new VirtualStick(0,360, 800, 160);
-        mFireStick = new VirtualStick(1,1780, 650, 160);
-        mSpecialStick = new VirtualStick(1,1450, 770, 280);
-        mGadgetStick = new VirtualStick(1,1618, 910, 160);
+        mLeftStick = new VirtualStick(injector, 0,360, 800, 160);
+        mFireStick = new VirtualStick(injector, 1,1780, 650, 160);
+        mSpecialStick = new VirtualStick(injector, 1,1450, 770, 280);
+        mGadgetStick = new VirtualStick(injector, 1,1618, 910, 160);
         // EMOJI_POINTER: 2
 
+        mFireStick.setPredictor(new StickPredictor(AIM_PREDICTION_MS));
+        mSpecialStick.setPredictor(new StickPredictor(AIM_PREDICTION_MS));
+
+        mLeftStick.setMinScreenDelta(STICK_MIN_SCREEN_DELTA);
+        mFireStick.setMinScreenDelta(STICK_MIN_SCREEN_DELTA);
+        mSpecialStick.setMinScreenDelta(STICK_MIN_SCREEN_DELTA);
+        mGadgetStick.setMinScreenDelta(STICK_MIN_SCREEN_DELTA);
+
+        mLeftFilters = newFilterChain();
+        mRightFilters = newFilterChain();
+        mGyroAim = new GyroAim(GYRO_SENSITIVITY, GYRO_DEADBAND, GYRO_OUTPUT_INTERVAL);
+        mRightPos = new PointF();
+        mTurboRates = new EnumMap<>(GamepadKey.class);
+        mTurboRates.put(GamepadKey.K_RB, TURBO_RATE);
+
+        mStickPos = new PointF();
+        mSample = new float[2];
         mIsSpecial = false;
     }
 
@@ -60,6 +116,13 @@ public class InputHandlerBS implements IInputHandler {
             return;
         }
 
+        Float turboRate = mTurboRates.get(key);
+
+        if(turboRate != null) {
+            turbo(key, pressed, turboRate);
+            return;
+        }
+
         if(!pressed)
             return;
 
@@ -97,6 +160,40 @@ public class InputHandlerBS implements IInputHandler {
         }
     }
 
+    @Override
+    public void setTurbo(GamepadKey key, float rateHz) {
+        if(rateHz > 0)
+            mTurboRates.put(key, rateHz);
+        else {
+            mTurboRates.remove(key);
+
+            if(key == mTurboKey)
+                turbo(key, false, 0);
+        }
+    }
+
+    @Override
+    public void setResponseCurve(boolean isLeftJoycon, ResponseCurve curve) {
+        if(isLeftJoycon)
+            mLeftStick.setResponseCurve(curve);
+        else {
+            mFireStick.setResponseCurve(curve);
+            mSpecialStick.setResponseCurve(curve);
+        }
+    }
+
+    // Taps the center of the right stick, which fires at the nearest target. The taps are
+    // scheduled by the injector, on a separate pointer, so the sticks can be used meanwhile.
+    private void turbo(GamepadKey key, boolean pressed, float rateHz) {
+        if(pressed) {
+            mTurboKey = key;
+            mInjector.startTurbo(TURBO_POINTER, getRightStick().getCenter(), rateHz);
+        } else if(key == mTurboKey) {
+            mTurboKey = null;
+            mInjector.stopTurbo();
+        }
+    }
+
     // Press a stick and then restore its previous position
     private void pressInPlace(VirtualStick stick) {
         boolean wasPressed = stick.isPressed();
@@ -106,38 +203,146 @@ public class InputHandlerBS implements IInputHandler {
         stick.press();
 
         if(wasPressed) {
-            mInjector.addDelay(30);
-            stick.moveTo(oldPos, 50);
+            mInjector.addDelay(Delays.redown());
+            stick.moveTo(oldPos, Delays.settle());
         }
     }
 
     private void pressPin(PointF coords) {
         mInjector.touchDown(EMOJI_POINTER, Pins.SELECTOR);
-        mInjector.addDelay(10);
+        mInjector.addDelay(Delays.downToMove);
         mInjector.touchUp(EMOJI_POINTER);
 
-        mInjector.addDelay(50);
+        mInjector.addDelay(Delays.UI_ANIMATION);
 
         mInjector.touchDown(EMOJI_POINTER, coords);
-        mInjector.addDelay(10);
+        mInjector.addDelay(Delays.downToMove);
         mInjector.touchUp(EMOJI_POINTER);
     }
 
+    private static StickFilterChain newFilterChain() {
+        return new StickFilterChain(
+                new DeadzoneFilter(STICK_DEADZONE),
+                new OneEuroFilter(STICK_MIN_CUTOFF, STICK_BETA, STICK_DERIVATE_CUTOFF));
+    }
+
     @Override
     public void onStickMove(boolean isLeftJoycon, float x, float y) {
+        long when = mInjector.getEventTime();
+
+        onStickSample(isLeftJoycon, (when > 0) ? when : SystemClock.uptimeMillis(), x, y);
+    }
+
+    // The current time in the timebase of the stick samples, which lag behind by the transit time
+    private long sourceNow() {
+        return SystemClock.uptimeMillis() - mSourceDelay;
+    }
+
+    private void onStickSample(boolean isLeftJoycon, long when, float x, float y) {
         VirtualStick stick = isLeftJoycon ? mLeftStick : getRightStick();
+        StickPredictor predictor = stick.getPredictor();
+
+        mSourceDelay = Math.max(SystemClock.uptimeMillis() - when, 0);
+
+        if(predictor != null) {
+            long latency = mInjector.getSourceLatency();
+
+            if(latency > 0)
+                predictor.setLatency(Math.min(latency, MAX_AIM_PREDICTION_MS));
+        }
+
+        mSample[0] = x;
+        mSample[1] = y;
+
+        if(!(isLeftJoycon ? mLeftFilters : mRightFilters).apply(when, mSample))
+            return;
+
+        x = mSample[0];
+        y = mSample[1];
 
         if((x != 0) || (y != 0)) {
-            PointF toPos = new PointF(x, y);
-            stick.moveTo(toPos, 0);
+            mStickPos.set(x, y);
+
+            if(!isLeftJoycon) {
+                mRightPos.set(x, y);
+                mGyroAim.apply(mStickPos);
+            }
+
+            stick.moveToSample(when, mStickPos);
         } else if(stick.isPressed()) {
-            stick.moveToCenter(50);
-            mInjector.addDelay(20);
+            if(!isLeftJoycon)
+                mRightPos.set(0, 0);
+
+            stick.moveToCenter(Delays.settle());
+            mInjector.addDelay(Delays.moveToUp);
             stick.release();
-            mInjector.addDelay(20);
+            mInjector.addDelay(Delays.upToDown);
         }
     }
 
+    @Override
+    public void onStickBatch(boolean isLeftJoycon, float[] xs, float[] ys, long[] times, int count) {
+        if(count <= 0)
+            return;
+
+        VirtualStick stick = isLeftJoycon ? mLeftStick : getRightStick();
+        StickFilterChain filters = isLeftJoycon ? mLeftFilters : mRightFilters;
+        int last = count - 1;
+
+        // Only the latest sample is injected, the older ones go through the filters and improve
+        // the velocity estimation
+        for(int i = 0; i < last; i++) {
+            mSample[0] = xs[i];
+            mSample[1] = ys[i];
+
+            if(filters.apply(times[i], mSample) && ((mSample[0] != 0) || (mSample[1] != 0))) {
+                mStickPos.set(mSample[0], mSample[1]);
+
+                if(!isLeftJoycon)
+                    mGyroAim.apply(mStickPos);
+
+                stick.addSample(times[i], mStickPos.x, mStickPos.y);
+            }
+        }
+
+        onStickSample(isLeftJoycon, times[last], xs[last], ys[last]);
+    }
+
+    @Override
+    public void settleSticks() {
+        settleStick(true);
+        settleStick(false);
+    }
+
+    private void settleStick(boolean isLeftJoycon) {
+        StickFilterChain filters = isLeftJoycon ? mLeftFilters : mRightFilters;
+
+        if(!filters.isSettled()) {
+            filters.getLastInput(mSample);
+            onStickSample(isLeftJoycon, sourceNow(), mSample[0], mSample[1]);
+        }
+
+        (isLeftJoycon ? mLeftStick : getRightStick()).settle();
+    }
+
+    @Override
+    public void onGyro(long timeNanos, float gx, float gy, float gz) {
+        VirtualStick stick = getRightStick();
+
+        // The gyro only refines the aim while the right stick is held
+        if(!stick.isPressed() || ((mRightPos.x == 0) && (mRightPos.y == 0))) {
+            mGyroAim.reset();
+            return;
+        }
+
+        if(!mGyroAim.addSample(timeNanos, gx, gy, gz))
+            return;
+
+        mStickPos.set(mRightPos.x, mRightPos.y);
+        mGyroAim.apply(mStickPos);
+        stick.moveToSample(sourceNow(), mStickPos);
+    }
+
     private VirtualStick getRightStick() {
         return(mIsSpecial ? mSpecialStick : mFireStick);
     }
@@ -153,8 +358,8 @@ public class InputHandlerBS implements IInputHandler {
         //oldPos = new PointF(oldPos.x, oldPos.y);
 
         if(mOldStick.isPressed()) {
-            mOldStick.moveToCenter(50);
-            mInjector.addDelay(50);
+            mOldStick.moveToCenter(Delays.settle());
+            mInjector.addDelay(Delays.settle());
             mOldStick.release();
 
             // TODO: not working properly due to missing interpolation
@@ -165,11 +370,24 @@ public class InputHandlerBS implements IInputHandler {
 
     @Override
     public void reset() {
-        mLeftStick.release();
-        mFireStick.release();
-        mSpecialStick.release();
-        mGadgetStick.release();
+        mLeftFilters.logStats("Left stick");
+        mRightFilters.logStats("Right stick");
+        Log.d(TAG, "Screen delta suppressed: left " + mLeftStick.getNumSuppressed() +
+                ", fire " + mFireStick.getNumSuppressed() + ", special " + mSpecialStick.getNumSuppressed());
+        Log.d(TAG, "Gyro: " + mGyroAim.dumpStats());
 
+        mLeftFilters.reset();
+        mRightFilters.reset();
+        mGyroAim.reset();
+        mRightPos.set(0, 0);
+        mTurboKey = null;
+
+        // Cancel first, so that the release does not wait for the queued events
         mInjector.cancel();
+
+        mLeftStick.cancel();
+        mFireStick.cancel();
+        mSpecialStick.cancel();
+        mGadgetStick.cancel();
     }
 }
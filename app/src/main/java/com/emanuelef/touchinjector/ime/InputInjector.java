@@ -27,64 +27,219 @@ import android.view.MotionEvent;
 import android.view.MotionEvent.PointerProperties;
 import android.view.MotionEvent.PointerCoords;
 
-import com.emanuelef.touchinjector.ParcelableUtil;
+import com.emanuelef.touchinjector.AllocStats;
+import com.emanuelef.touchinjector.InjectorWatchdog;
+import com.emanuelef.touchinjector.LowLatencyMode;
 
-import java.io.DataOutputStream;
-import java.io.IOException;
-import java.io.OutputStream;
-import java.net.Socket;
 import java.util.HashMap;
 import java.util.Iterator;
 import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
 import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
 
 public class InputInjector {
     private static final String TAG = "InputInjector";
     private static final int ACTION_STOP = 0xFF;
-
-    private static InputInjector mInstance;
+    private static final int ACTION_SYNC = 0xFE;
+    private static final int QUEUE_CAPACITY = 500;
+    private static final int MAX_POINTERS = 16;
+    private static final float MAX_TURBO_RATE = 30; // Hz
+    public static final int DEFAULT_DISPLAY = 0;
+
+    private static final HashMap<Integer, InputInjector> mInstances = new HashMap<>();
+    private final int mDisplayId;
     private final HashMap<Integer, Pointer> mPointers;
     private final Thread mThread;
     private final LinkedBlockingQueue<PointersState> mQueue;
+    private final ArrayBlockingQueue<PointersState> mStatesPool;
+    // Only changed by mThread, also read by the watchdog
+    private volatile InjectionBackend mBackend;
+    private volatile InjectionBackend mNewBackend;
+    private final InjectorWatchdog.Stage mWatchdog;
 
     private long mDelay;
     private long mLastEventMillis;
-    DataOutputStream mOutputStream;
-
-    private InputInjector() {
+    private long mEventTime;
+    private long mEventTimeShift;
+    private boolean mEventTimeUsed;
+    private int mFrameDepth;
+    private int mFramePointer;
+    private boolean mFramePending;
+    // Only used by mThread
+    private long mDownTime;
+    private long mLastEventTime;
+    private float mSourceLatencyAvg;
+    private volatile long mNumInjected;
+    private volatile long mNumDropped;
+
+    // Bumped by cancel, the states of the previous epochs are skipped
+    private volatile int mEpoch;
+    private volatile long mNumStale;
+    private volatile long mCancelLatency; // ns
+    private volatile long mSourceLatency; // ms, smoothed
+
+    // Turbo, see startTurbo
+    private volatile Turbo mTurbo;
+    // Wakes up mThread when it waits for new events, skipped once dequeued
+    private final PointersState mWakeState;
+    // Only used by mThread
+    private final PointersState mSent;
+    private final PointersState mTurboState;
+    private Turbo mActiveTurbo;
+    private boolean mTurboDown;
+    private long mTurboStart;
+    private long mTurboCycle;
+    private long mTurboNext;
+    private long mNumTurboPresses;
+    private long mNumTurboMissed;
+
+    private InputInjector(int displayId) {
+        mDisplayId = displayId;
         mPointers = new HashMap<>();
-        mQueue = new LinkedBlockingQueue<>(500);
+        mQueue = new LinkedBlockingQueue<>(QUEUE_CAPACITY);
+        mStatesPool = new ArrayBlockingQueue<>(QUEUE_CAPACITY);
+        mBackend = new MainServerBackend(displayId);
         mDelay = 0;
         mLastEventMillis = 0;
+        mWakeState = new PointersState();
+        mSent = new PointersState();
+        mTurboState = new PointersState();
+        mWatchdog = InjectorWatchdog.register("injector-" + displayId,
+                () -> "queue=" + mQueue.size() + ", injected=" + mNumInjected + ", backend=" + mBackend.getName(),
+                this::abortBackend);
 
         mThread = new Thread(() -> {
+            LowLatencyMode.PipelineThread sched = LowLatencyMode.register("injector-" + displayId);
+            PointersState state = null;
+
             try {
                 while(true) {
-                    PointersState state = mQueue.take();
+                    long turboWait = runTurbo();
+
+                    if(state == null) {
+                        // Send the batched events before waiting for new ones
+                        if(mQueue.isEmpty())
+                            flushBackend();
+
+                        if(turboWait == Long.MAX_VALUE)
+                            state = mQueue.take();
+                        else {
+                            long deadline = System.nanoTime() + turboWait;
+                            state = mQueue.poll(turboWait, TimeUnit.NANOSECONDS);
+
+                            if(state == null)
+                                sched.onWake(deadline);
+                        }
+
+                        if(state == mWakeState)
+                            state = null;
+                        if(state == null)
+                            continue;
+                    }
 
-                    if(state.mAction == ACTION_STOP)
+                    if(state.mAction == ACTION_STOP) {
+                        mBackend.close();
+                        InjectorWatchdog.unregister(mWatchdog);
+                        LowLatencyMode.unregister(sched);
                         break;
+                    }
+
+                    // Not affected by the cancels, as the caller waits for it
+                    if(state.mAction == ACTION_SYNC) {
+                        flushBackend();
+                        state.mCallback.run();
+                        state.mCallback = null;
+                        mStatesPool.offer(state);
+                        state = null;
+                        continue;
+                    }
+
+                    // Also skips the state being waited for, as cancel wakes up the thread
+                    if(state.mEpoch != mEpoch) {
+                        mStatesPool.offer(state);
+                        state = null;
+                        mNumStale++;
+                        continue;
+                    }
+
+                    if((state.mAction == MotionEvent.ACTION_CANCEL) && !buildCancel(state)) {
+                        // nothing was pressed
+                        mStatesPool.offer(state);
+                        state = null;
+                        continue;
+                    }
+
+                    switchBackend();
 
                     long millis = SystemClock.uptimeMillis();
                     long doAt = mLastEventMillis + state.mDelay;
 
                     if(millis < doAt) {
-                        long toSleep = doAt - millis;
-                        Thread.sleep(toSleep);
-                        millis = SystemClock.uptimeMillis();
+                        // Also wakes up for the turbo timeline and on stopTurbo
+                        flushBackend();
+
+                        long wait = Math.min((doAt - millis) * 1000000, turboWait);
+                        long deadline = System.nanoTime() + wait;
+                        LockSupport.parkNanos(wait);
+                        sched.onWake(deadline);
+                        continue;
+                    }
+
+                    long eventTime = millis;
+
+                    // Use the source time if it's consistent with the events already sent
+                    if((state.mEventTime > 0) && (state.mEventTime <= millis) &&
+                            (state.mEventTime >= mLastEventTime)) {
+                        eventTime = state.mEventTime;
+
+                        // smoothed, as a single late event would skew the aim prediction
+                        mSourceLatencyAvg += (millis - eventTime - mSourceLatencyAvg) / 8;
+                        mSourceLatency = Math.round(mSourceLatencyAvg);
                     }
 
-                    MotionEvent event = sendMotionEvent(state, millis, millis);
-                    //Log.d(TAG, "EV: " + event.toString());
+                    updateSent(state);
+                    mergeTurbo(state);
+                    dispatch(state, eventTime);
+
+                    if(state.mAction == MotionEvent.ACTION_CANCEL) {
+                        mCancelLatency = System.nanoTime() - state.mQueuedAt;
+                        Log.d(TAG, "Cancel injected after " + (mCancelLatency / 1000) + " us, " +
+                                mNumStale + " stale events skipped so far");
+                    }
+
+                    mStatesPool.offer(state);
+                    state = null;
                     mLastEventMillis = millis;
+                    mNumInjected++;
                 }
             } catch (InterruptedException e) {
                 e.printStackTrace();
             }
-        });
+        }, "InputInjector-" + displayId);
         mThread.start();
     }
 
+    // A pointer tapped periodically at a fixed position
+    private static class Turbo {
+        final int mPointer;
+        final float mX;
+        final float mY;
+        final long mPeriod; // ns
+        final long mHold; // ns
+
+        Turbo(int pointer, PointF pos, float rateHz) {
+            mPointer = pointer;
+            mX = pos.x;
+            mY = pos.y;
+            mPeriod = (long) (1e9 / Math.max(Math.min(rateHz, MAX_TURBO_RATE), 1));
+
+            // Half of the period, but long enough for the tap to be registered
+            mHold = Math.min(Math.max(mPeriod / 2, Delays.downToMove * 1000000), mPeriod - 1000000);
+        }
+    }
+
     private static class Pointer {
         int mId;
         PointF mPos;
@@ -96,19 +251,268 @@ public class InputInjector {
     }
 
     public static void start() {
-        mInstance = new InputInjector();
+        start(DEFAULT_DISPLAY);
     }
 
-    public static void end() {
-        if(mInstance == null)
-            return;
+    // Starts an injector for the given display, each one with its own thread and pointers
+    public static synchronized InputInjector start(int displayId) {
+        InputInjector injector = mInstances.get(displayId);
+
+        if(injector == null) {
+            injector = new InputInjector(displayId);
+            mInstances.put(displayId, injector);
+        }
+
+        return injector;
+    }
+
+    // Starts an injector which is not shared with the input handlers, e.g. to probe the injection
+    // without racing with the commands of a client. Stop it with release.
+    public static InputInjector startPrivate(int displayId) {
+        return new InputInjector(displayId);
+    }
+
+    // Stops an injector created by startPrivate
+    public void release() {
+        stop();
+    }
+
+    // Stops all the injectors
+    public static synchronized void end() {
+        for(InputInjector injector: mInstances.values())
+            injector.stop();
+
+        mInstances.clear();
+    }
+
+    public static synchronized void end(int displayId) {
+        InputInjector injector = mInstances.remove(displayId);
 
-        mInstance.stop();
-        mInstance = null;
+        if(injector != null)
+            injector.stop();
     }
 
     public static InputInjector getInstance() {
-        return mInstance;
+        return getInstance(DEFAULT_DISPLAY);
+    }
+
+    public static synchronized InputInjector getInstance(int displayId) {
+        return mInstances.get(displayId);
+    }
+
+    public int getDisplayId() {
+        return mDisplayId;
+    }
+
+    // Replaces the sink of the events, starting from the next one. The previous backend is closed
+    // by the injector thread. By default, the events are sent to the Main injection server.
+    public void setBackend(InjectionBackend backend) {
+        mNewBackend = backend;
+    }
+
+    // Only called by mThread
+    private void switchBackend() {
+        InjectionBackend backend = mNewBackend;
+
+        if(backend == null)
+            return;
+
+        mNewBackend = null;
+        Log.d(TAG, "Backend: " + mBackend.getName() + " -> " + backend.getName());
+
+        flushBackend();
+        mBackend.close();
+        mBackend = backend;
+    }
+
+    // Only called by mThread. The backend may block on a write, see abortBackend.
+    private void flushBackend() {
+        mWatchdog.begin();
+
+        try {
+            mBackend.flush();
+        } finally {
+            mWatchdog.end();
+        }
+    }
+
+    // Called by the watchdog when mThread is stuck in the backend: the main server connection is
+    // closed, which fails the pending write, and the next event reconnects
+    private void abortBackend() {
+        InjectionBackend backend = mBackend;
+
+        if(backend instanceof MainServerBackend)
+            ((MainServerBackend) backend).abort();
+    }
+
+    // Taps the pointer at pos rateHz times per second, until stopTurbo. The timeline is run by the
+    // injector thread, independently of the queue, so that its cadence does not drift with the load
+    // and the other pointers keep moving. The pointer id must not be used for the other events.
+    public void startTurbo(int pointer, PointF pos, float rateHz) {
+        mTurbo = new Turbo(pointer, pos, rateHz);
+        wakeUp();
+    }
+
+    // Releases the turbo pointer right away, without waiting for the queued events
+    public void stopTurbo() {
+        if(mTurbo == null)
+            return;
+
+        mTurbo = null;
+        wakeUp();
+    }
+
+    private void wakeUp() {
+        LockSupport.unpark(mThread);
+        mQueue.offer(mWakeState);
+    }
+
+    // Only called by mThread. Runs the turbo timeline and returns the time (ns) until its next
+    // deadline, Long.MAX_VALUE if it's not active
+    private long runTurbo() {
+        Turbo turbo = mTurbo;
+        long now = System.nanoTime();
+
+        if(turbo != mActiveTurbo) {
+            if(mTurboDown)
+                sendTurbo(false);
+
+            if((turbo == null) && (mActiveTurbo != null))
+                Log.d(TAG, "Turbo: " + mNumTurboPresses + " presses, " + mNumTurboMissed + " missed");
+
+            mActiveTurbo = turbo;
+            mTurboStart = now;
+            mTurboCycle = 0;
+            mTurboNext = now;
+        }
+
+        if(turbo == null)
+            return Long.MAX_VALUE;
+
+        if(now >= mTurboNext) {
+            if(!mTurboDown) {
+                sendTurbo(true);
+                mTurboNext = mTurboStart + mTurboCycle * turbo.mPeriod + turbo.mHold;
+            } else {
+                sendTurbo(false);
+                mTurboCycle++;
+
+                // Skip the cycles which cannot be held anymore, instead of bursting them
+                long cycle = (now - mTurboStart - turbo.mHold) / turbo.mPeriod + 1;
+
+                if(cycle > mTurboCycle) {
+                    mNumTurboMissed += cycle - mTurboCycle;
+                    mTurboCycle = cycle;
+                }
+
+                mTurboNext = mTurboStart + mTurboCycle * turbo.mPeriod;
+            }
+        }
+
+        return Math.max(mTurboNext - now, 0);
+    }
+
+    // Only called by mThread. The turbo pointer is pressed/released at index 0, along with the
+    // other pointers as last sent
+    private void sendTurbo(boolean down) {
+        PointersState state = mTurboState;
+        int numOthers = Math.min(mSent.mNumPointers, MAX_POINTERS - 1);
+
+        state.mPointerProps[0].id = mActiveTurbo.mPointer;
+        state.mPointerCoords[0].x = mActiveTurbo.mX;
+        state.mPointerCoords[0].y = mActiveTurbo.mY;
+
+        for(int i = 0; i < numOthers; i++)
+            copyPointer(mSent, i, state, i + 1);
+
+        state.mNumPointers = numOthers + 1;
+
+        if(down)
+            state.mAction = (numOthers == 0) ? MotionEvent.ACTION_DOWN : MotionEvent.ACTION_POINTER_DOWN;
+        else
+            state.mAction = (numOthers == 0) ? MotionEvent.ACTION_UP : MotionEvent.ACTION_POINTER_UP;
+
+        dispatch(state, Math.max(SystemClock.uptimeMillis(), mLastEventTime));
+        mTurboDown = down;
+        mNumInjected++;
+
+        if(down)
+            mNumTurboPresses++;
+    }
+
+    // Only called by mThread. The pointers canceled are the ones last sent, as the stale states
+    // were skipped. Returns false if there is nothing to cancel.
+    private boolean buildCancel(PointersState state) {
+        int numPointers = mSent.mNumPointers;
+
+        for(int i = 0; i < numPointers; i++)
+            copyPointer(mSent, i, state, i);
+
+        state.mNumPointers = numPointers;
+        return((numPointers > 0) || mTurboDown);
+    }
+
+    // Only called by mThread. Tracks the pointers which are down after the state is sent
+    private void updateSent(PointersState state) {
+        int from = 0;
+
+        switch(state.mAction) {
+            case MotionEvent.ACTION_UP:
+            case MotionEvent.ACTION_CANCEL:
+                mSent.mNumPointers = 0;
+                return;
+            case MotionEvent.ACTION_POINTER_UP:
+                // the pointer which goes up is at index 0, see buildMotionEvent
+                from = 1;
+                break;
+        }
+
+        for(int i = from; i < state.mNumPointers; i++)
+            copyPointer(state, i, mSent, i - from);
+
+        mSent.mNumPointers = state.mNumPointers - from;
+    }
+
+    // Only called by mThread. Adds the turbo pointer, if down, to an event of the other pointers
+    private void mergeTurbo(PointersState state) {
+        if(!mTurboDown)
+            return;
+
+        if(state.mAction == MotionEvent.ACTION_CANCEL) {
+            // the cancel also covers the turbo pointer, which is pressed again on the next cycle
+            mTurboDown = false;
+        } else if(state.mAction == MotionEvent.ACTION_DOWN)
+            state.mAction = MotionEvent.ACTION_POINTER_DOWN;
+        else if(state.mAction == MotionEvent.ACTION_UP)
+            state.mAction = MotionEvent.ACTION_POINTER_UP;
+
+        int i = state.mNumPointers;
+
+        if(i >= MAX_POINTERS)
+            return;
+
+        state.mPointerProps[i].id = mActiveTurbo.mPointer;
+        state.mPointerCoords[i].x = mActiveTurbo.mX;
+        state.mPointerCoords[i].y = mActiveTurbo.mY;
+        state.mNumPointers++;
+    }
+
+    private static void copyPointer(PointersState from, int i, PointersState to, int j) {
+        to.mPointerProps[j].id = from.mPointerProps[i].id;
+        to.mPointerCoords[j].x = from.mPointerCoords[i].x;
+        to.mPointerCoords[j].y = from.mPointerCoords[i].y;
+    }
+
+    // Only called by mThread
+    private void dispatch(PointersState state, long eventTime) {
+        if((state.mAction == MotionEvent.ACTION_DOWN) || (mDownTime == 0))
+            mDownTime = eventTime;
+
+        sendMotionEvent(state, mDownTime, eventTime);
+        mLastEventTime = eventTime;
+
+        if((state.mAction == MotionEvent.ACTION_UP) || (state.mAction == MotionEvent.ACTION_CANCEL))
+            mDownTime = 0; // gesture end
     }
 
     private void stop() {
@@ -131,21 +535,41 @@ public class InputInjector {
         }
     }
 
+    // The states are recycled via mStatesPool once sent, so their arrays are preallocated
     static class PointersState {
         int mAction;
         int mNumPointers;
-        PointerCoords[] mPointerCoords;
-        PointerProperties[] mPointerProps;
+        final PointerCoords[] mPointerCoords;
+        final PointerProperties[] mPointerProps;
         long mDelay;
+        long mEventTime;
+        int mEpoch;
+        long mQueuedAt; // System.nanoTime()
+        Runnable mCallback; // ACTION_SYNC only
+
+        PointersState() {
+            mPointerCoords = new PointerCoords[MAX_POINTERS];
+            mPointerProps = new PointerProperties[MAX_POINTERS];
+
+            for(int i = 0; i < MAX_POINTERS; i++) {
+                mPointerProps[i] = new PointerProperties();
+                mPointerProps[i].toolType = MotionEvent.TOOL_TYPE_UNKNOWN;
+
+                mPointerCoords[i] = new PointerCoords();
+                mPointerCoords[i].pressure = 1.0f;
+                mPointerCoords[i].size = 1.0f;
+            }
+        }
+    }
 
-        PointersState() {}
+    private PointersState obtainState() {
+        PointersState state = mStatesPool.poll();
+        return (state != null) ? state : new PointersState();
     }
 
     private PointersState buildMotionEvent(int pointer, int action, long delay) {
-        int numPointers = mPointers.size();
-
-        PointerCoords[] mPointerCoords = new PointerCoords[numPointers];
-        PointerProperties[] mPointerProps = new PointerProperties[numPointers];
+        int numPointers = Math.min(mPointers.size(), MAX_POINTERS);
+        PointersState state = obtainState();
 
         Iterator<Map.Entry<Integer, Pointer>> it = mPointers.entrySet().iterator();
         int j = 0;
@@ -154,25 +578,31 @@ public class InputInjector {
             Pointer ptr = it.next().getValue();
             int i = ((ptr.mId == pointer) ? 0 : ++j);
 
-            mPointerProps[i] = new PointerProperties();
-            mPointerProps[i].id = ptr.mId;
-            mPointerProps[i].toolType = MotionEvent.TOOL_TYPE_UNKNOWN;
+            if(i >= numPointers)
+                continue;
 
-            mPointerCoords[i] = new PointerCoords();
-            mPointerCoords[i].pressure = 1.0f;
-            mPointerCoords[i].size = 1.0f;
-            mPointerCoords[i].x = ptr.mPos.x;
-            mPointerCoords[i].y = ptr.mPos.y;
+            state.mPointerProps[i].id = ptr.mId;
+            state.mPointerCoords[i].x = ptr.mPos.x;
+            state.mPointerCoords[i].y = ptr.mPos.y;
 
-            //Log.d(TAG, "MotionEvent: " + mPointerCoords[i].x + ", " + mPointerCoords[i].y);
+            //Log.d(TAG, "MotionEvent: " + ptr.mPos.x + ", " + ptr.mPos.y);
         }
 
-        PointersState state = new PointersState();
         state.mNumPointers = numPointers;
-        state.mPointerCoords = mPointerCoords;
-        state.mPointerProps = mPointerProps;
         state.mAction = action;
         state.mDelay = delay;
+        state.mEpoch = mEpoch;
+
+        // The events after the first one are shifted by the delays which separate them from it
+        if(mEventTime > 0) {
+            if(mEventTimeUsed)
+                mEventTimeShift += delay;
+
+            state.mEventTime = mEventTime + mEventTimeShift;
+            mEventTimeUsed = true;
+        } else
+            state.mEventTime = 0;
+        state.mQueuedAt = System.nanoTime();
 
         //Log.d(TAG, "MotionEvent: " + numPointers + " -> " + action);
 
@@ -183,42 +613,131 @@ public class InputInjector {
         mDelay += millis;
     }
 
+    // Sets the time, in the SystemClock.uptimeMillis() timebase, at which the source sampled the
+    // input which generates the next events. Pass 0 to use the injection time. The source time is
+    // only used if it is consistent with the previous events, as the delays can reorder them.
+    // It applies to the first event, the next ones are shifted by their delays.
+    public void setEventTime(long uptimeMillis) {
+        mEventTime = uptimeMillis;
+        mEventTimeShift = 0;
+        mEventTimeUsed = false;
+    }
+
+    // The source time of the next events, 0 if unknown
+    public long getEventTime() {
+        return mEventTime;
+    }
+
+    // Overrides the delay of the next event, including the default inter-event delay
+    public void setDelay(long millis) {
+        mDelay = millis;
+    }
+
+    // Within a frame, the moves of all the pointers are coalesced into a single MOVE, posted by
+    // endFrame, so that the pointers changed together are injected together. Frames can be nested.
+    public void beginFrame() {
+        mFrameDepth++;
+    }
+
+    public void endFrame() {
+        if((mFrameDepth == 0) || (--mFrameDepth > 0))
+            return;
+
+        if(mFramePending && mPointers.containsKey(mFramePointer))
+            postMotionEvent(mFramePointer, MotionEvent.ACTION_MOVE);
+
+        mFramePending = false;
+    }
+
     private void postMotionEvent(int pointer, int action) {
+        AllocStats.STATE.begin();
+
+        // Every event carries the current position of all the pointers
+        mFramePending = false;
         PointersState state = buildMotionEvent(pointer, action, mDelay);
 
         try {
             mQueue.add(state);
         } catch (IllegalStateException e) {
+            mNumDropped++;
+            mStatesPool.offer(state);
             e.printStackTrace();
         }
 
-        mDelay = 1;
+        mDelay = Delays.interEvent;
+        AllocStats.STATE.end();
     }
 
-    private MotionEvent sendMotionEvent(PointersState state, long millis, long when) {
-        MotionEvent event = MotionEvent.obtain(millis, when, state.mAction,
+    // Runs the callback on the injector thread once the events posted so far have been injected
+    public void runWhenInjected(Runnable callback) {
+        PointersState state = obtainState();
+        state.mAction = ACTION_SYNC;
+        state.mNumPointers = 0;
+        state.mDelay = 0;
+        state.mEpoch = mEpoch;
+        state.mCallback = callback;
+
+        try {
+            mQueue.add(state);
+        } catch (IllegalStateException e) {
+            mStatesPool.offer(state);
+            callback.run();
+        }
+    }
+
+    public boolean isPressed(int pointer) {
+        return mPointers.containsKey(pointer);
+    }
+
+    public int getQueueDepth() {
+        return mQueue.size();
+    }
+
+    public int getQueueCapacity() {
+        return QUEUE_CAPACITY;
+    }
+
+    // Number of events sent to the injection server
+    public long getNumInjected() {
+        return mNumInjected;
+    }
+
+    // Number of events dropped due to a full queue
+    public long getNumDropped() {
+        return mNumDropped;
+    }
+
+    // Number of queued events skipped due to a cancel
+    public long getNumStale() {
+        return mNumStale;
+    }
+
+    // Time (ms) from the source sampling to the injection of the events, 0 without source times
+    public long getSourceLatency() {
+        return mSourceLatency;
+    }
+
+    // Time (ns) from the last cancel to its injection
+    public long getCancelLatency() {
+        return mCancelLatency;
+    }
+
+    private void sendMotionEvent(PointersState state, long downTime, long eventTime) {
+        AllocStats.MARSHAL.begin();
+        MotionEvent event = MotionEvent.obtain(downTime, eventTime, state.mAction,
                 state.mNumPointers, state.mPointerProps, state.mPointerCoords,
                 0, 0, 1, 1, 0, 0,
                 InputDevice.SOURCE_TOUCHSCREEN, 0);
 
-        try {
-            if(mOutputStream == null) {
-                Socket mSocket = new Socket("127.0.0.1", 7171);
-                mSocket.setTcpNoDelay(true);
-
-                OutputStream output = mSocket.getOutputStream();
-                mOutputStream = new DataOutputStream(output);
-            }
+        mWatchdog.begin();
 
-            byte [] evBytes = ParcelableUtil.marshall(event);
-            mOutputStream.writeInt(evBytes.length);
-            mOutputStream.write(evBytes);
-        } catch (IOException e) {
-            mOutputStream = null;
-            e.printStackTrace();
+        try {
+            mBackend.inject(event);
+        } finally {
+            mWatchdog.end();
+            event.recycle();
+            AllocStats.MARSHAL.end();
         }
-
-        return event;
     }
 
     public void touchDown(int pointer, PointF pos) {
@@ -258,18 +777,35 @@ public class InputInjector {
             return;
         }
 
-        ptr.mPos = pos;
+        ptr.mPos.set(pos.x, pos.y);
+
+        if(mFrameDepth > 0) {
+            mFramePending = true;
+            mFramePointer = pointer;
+            return;
+        }
+
         postMotionEvent(pointer, MotionEvent.ACTION_MOVE);
     }
 
+    // Cancels the pointers without waiting for the queued events, which are skipped instead. The
+    // CANCEL is built by the injector thread from the pointers it actually sent.
     public void cancel() {
-        if(mPointers.size() == 0)
-            return;
+        stopTurbo();
+        mPointers.clear();
+        mFramePending = false;
+        mEpoch++;
 
-        Pointer some = mPointers.entrySet().iterator().next().getValue();
-        mDelay = 0;
-        postMotionEvent(some.mId, MotionEvent.ACTION_CANCEL);
+        PointersState state = buildMotionEvent(-1, MotionEvent.ACTION_CANCEL, 0);
+        mDelay = Delays.interEvent;
 
-        mPointers.clear();
+        // Skip the stale events right away, a full queue is drained meanwhile
+        LockSupport.unpark(mThread);
+
+        try {
+            mQueue.put(state);
+        } catch (InterruptedException e) {
+            e.printStackTrace();
+        }
     }
 }
@@ -0,0 +1,54 @@
+/*
+ * This file is part of TouchInjector.
+ *
+ * TouchInjector is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * TouchInjector is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with TouchInjector.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ * Copyright 2021 - Emanuele Faranda
+ */
+
+package com.emanuelef.touchinjector.ime;
+
+import android.app.Instrumentation;
+import android.view.MotionEvent;
+
+// Injects the events in process via Instrumentation. Without the INJECT_EVENTS permission, the
+// events only reach the windows of this app, so it's only useful to test the injection pipeline
+// against the DrawView, without the Main server.
+public class InstrumentationBackend implements InjectionBackend {
+    private final Instrumentation mInstrumentation = new Instrumentation();
+    private long mNumFailed;
+
+    @Override
+    public void inject(MotionEvent event) {
+        try {
+            // NOTE: blocks until the event is handled, must not be called on the main thread
+            mInstrumentation.sendPointerSync(event);
+        } catch (SecurityException e) {
+            // The target window belongs to another app
+            if(mNumFailed++ == 0)
+                e.printStackTrace();
+        }
+    }
+
+    @Override
+    public void flush() {}
+
+    @Override
+    public void close() {}
+
+    @Override
+    public String getName() {
+        return "instrumentation";
+    }
+}
@@ -0,0 +1,302 @@
+/*
+ * This file is part of TouchInjector.
+ *
+ * TouchInjector is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * TouchInjector is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with TouchInjector.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ * Copyright 2021 - Emanuele Faranda
+ */
+
+package com.emanuelef.touchinjector.ime;
+
+import android.os.SystemClock;
+import android.util.Log;
+
+import com.emanuelef.touchinjector.LowLatencyMode;
+
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.Iterator;
+
+// Smooths the bursty arrival of the commands over wireless links (e.g. adb over Wi-Fi), which
+// otherwise are replayed as soon as they arrive. Each command carries the host time of its input
+// sample, mapped to the local clock by ClockSync, and is played out at that time plus a small delay,
+// so that the original cadence is restored.
+// The delay adapts to the link: it is the 95th percentile of the transit time in excess of the
+// fastest one, over the last samples. A stick sample which is still queued when a newer sample of
+// the same stick is due is dropped, as only the latest position matters. Keys are never dropped.
+class JitterBuffer {
+    private static final String TAG = "JitterBuffer";
+    private static final long MIN_DELAY = 2; // ms
+    private static final long MAX_DELAY = 60; // ms
+    private static final long INITIAL_DELAY = 10; // ms
+    private static final int JITTER_WINDOW = 128;
+    private static final int ADAPT_EVERY = 32;
+    private static final int POOL_SIZE = 64;
+
+    static final int TYPE_KEY = 0;
+    static final int TYPE_STICK = 1;
+
+    // The commands are recycled via mPool once played out
+    static class Command {
+        int mType;
+        int mDisplayId;
+        GamepadKey mKey;
+        boolean mPressed;
+        boolean mIsLeft;
+        float mX;
+        float mY;
+        long mEventTime;
+        long mPlayoutTime;
+    }
+
+    interface Listener {
+        // Called on the playout thread
+        void onPlayout(Command cmd);
+    }
+
+    private final Listener mListener;
+    private final ArrayDeque<Command> mQueue = new ArrayDeque<>();
+    private final ArrayDeque<Command> mPool = new ArrayDeque<>();
+    private final long[] mTransits = new long[JITTER_WINDOW];
+    private final long[] mSorted = new long[JITTER_WINDOW];
+    private Thread mThread;
+    private boolean mRunning;
+    private LowLatencyMode.PipelineThread mSched;
+
+    // Accessed with the object lock held
+    private int mNumTransits;
+    private int mTransitsHead;
+    private int mSinceAdapt;
+    private long mDelay;
+    private long mLastPlayout;
+    private long mNumLate;
+    private long mNumDropped;
+    private long mNumPlayed;
+
+    JitterBuffer(Listener listener) {
+        mListener = listener;
+        mDelay = INITIAL_DELAY;
+
+        for(int i = 0; i < POOL_SIZE; i++)
+            mPool.add(new Command());
+    }
+
+    synchronized void start() {
+        mRunning = true;
+        mThread = new Thread(this::run, "JitterBuffer");
+        mThread.start();
+    }
+
+    // Plays out the queued commands immediately and stops the playout thread
+    void stop() {
+        Thread thread;
+
+        synchronized (this) {
+            mRunning = false;
+            thread = mThread;
+            mThread = null;
+            notifyAll();
+        }
+
+        if(thread == null)
+            return;
+
+        while(thread.isAlive()) {
+            try {
+                thread.join();
+            } catch (InterruptedException e) {
+                Log.e(TAG, "Joining thread failed");
+            }
+        }
+
+        Log.d(TAG, "Stopped: " + dumpStats());
+    }
+
+    // eventTime: the time of the input sample, in the SystemClock.uptimeMillis() timebase
+    synchronized void pushKey(int displayId, GamepadKey key, boolean pressed, long eventTime) {
+        Command cmd = obtainCommand(TYPE_KEY, displayId, eventTime);
+        cmd.mKey = key;
+        cmd.mPressed = pressed;
+        enqueue(cmd);
+    }
+
+    synchronized void pushStick(int displayId, boolean isLeft, float x, float y, long eventTime) {
+        Command cmd = obtainCommand(TYPE_STICK, displayId, eventTime);
+        cmd.mIsLeft = isLeft;
+        cmd.mX = x;
+        cmd.mY = y;
+        enqueue(cmd);
+    }
+
+    synchronized int getDepth() {
+        return mQueue.size();
+    }
+
+    synchronized long getDelay() {
+        return mDelay;
+    }
+
+    // Number of commands which arrived after their playout time
+    synchronized long getNumLate() {
+        return mNumLate;
+    }
+
+    // Number of stick samples superseded by a newer one before their playout
+    synchronized long getNumDropped() {
+        return mNumDropped;
+    }
+
+    synchronized String dumpStats() {
+        return "depth=" + mQueue.size() + ", delay=" + mDelay + " ms, played=" + mNumPlayed +
+                ", late=" + mNumLate + ", dropped=" + mNumDropped;
+    }
+
+    private Command obtainCommand(int type, int displayId, long eventTime) {
+        Command cmd = mPool.poll();
+
+        if(cmd == null)
+            cmd = new Command();
+
+        cmd.mType = type;
+        cmd.mDisplayId = displayId;
+        cmd.mEventTime = eventTime;
+        return cmd;
+    }
+
+    private synchronized void recycle(Command cmd) {
+        cmd.mKey = null;
+
+        if(mPool.size() < POOL_SIZE)
+            mPool.add(cmd);
+    }
+
+    private void enqueue(Command cmd) {
+        long now = SystemClock.uptimeMillis();
+
+        // ClockSync maps the fastest sample to its receive time, the rest is the link jitter
+        addTransit(Math.max(now - cmd.mEventTime, 0));
+
+        // Never reorder the commands, a delay decrease is absorbed gradually
+        long playout = Math.max(cmd.mEventTime + mDelay, mLastPlayout);
+
+        if(playout < now) {
+            mNumLate++;
+            playout = now;
+        }
+
+        cmd.mPlayoutTime = playout;
+        mLastPlayout = playout;
+        mQueue.add(cmd);
+        notifyAll();
+    }
+
+    private void addTransit(long transit) {
+        mTransits[mTransitsHead] = transit;
+        mTransitsHead = (mTransitsHead + 1) % JITTER_WINDOW;
+        mNumTransits = Math.min(mNumTransits + 1, JITTER_WINDOW);
+
+        if(++mSinceAdapt < ADAPT_EVERY)
+            return;
+
+        mSinceAdapt = 0;
+        System.arraycopy(mTransits, 0, mSorted, 0, mNumTransits);
+        Arrays.sort(mSorted, 0, mNumTransits);
+
+        long target = Math.min(Math.max(mSorted[mNumTransits * 95 / 100], MIN_DELAY), MAX_DELAY);
+
+        // Grow immediately to stop the late commands, shrink slowly to avoid oscillations
+        if(target > mDelay)
+            mDelay = target;
+        else if(target < mDelay)
+            mDelay--;
+    }
+
+    private static boolean isCenter(Command cmd) {
+        return (cmd.mX == 0) && (cmd.mY == 0);
+    }
+
+    // A stick sample is superseded if a newer non-center sample of the same stick is due. The
+    // center samples release the stick, so they are always played, and they are not skipped over.
+    private boolean isSuperseded(Command cmd, long now) {
+        if(isCenter(cmd))
+            return false;
+
+        Iterator<Command> it = mQueue.iterator();
+
+        while(it.hasNext()) {
+            Command next = it.next();
+
+            if(next.mPlayoutTime > now)
+                break;
+
+            if((next.mType == TYPE_STICK) && (next.mIsLeft == cmd.mIsLeft) &&
+                    (next.mDisplayId == cmd.mDisplayId))
+                return !isCenter(next);
+        }
+
+        return false;
+    }
+
+    // Waits for the next due command, returns null when stopped and drained
+    private synchronized Command takeDue() throws InterruptedException {
+        while(true) {
+            Command cmd = mQueue.peek();
+
+            if(cmd == null) {
+                if(!mRunning)
+                    return null;
+
+                wait();
+                continue;
+            }
+
+            long now = SystemClock.uptimeMillis();
+
+            if(mRunning && (cmd.mPlayoutTime > now)) {
+                long deadline = System.nanoTime() + (cmd.mPlayoutTime - now) * 1000000;
+                wait(cmd.mPlayoutTime - now);
+                mSched.onWake(deadline);
+                continue;
+            }
+
+            mQueue.poll();
+
+            if((cmd.mType == TYPE_STICK) && isSuperseded(cmd, mRunning ? now : Long.MAX_VALUE)) {
+                mNumDropped++;
+                recycle(cmd);
+                continue;
+            }
+
+            mNumPlayed++;
+            return cmd;
+        }
+    }
+
+    private void run() {
+        mSched = LowLatencyMode.register("jitter_buffer");
+
+        try {
+            Command cmd;
+
+            while((cmd = takeDue()) != null) {
+                mListener.onPlayout(cmd);
+                recycle(cmd);
+            }
+        } catch (InterruptedException e) {
+            Log.d(TAG, "Interrupted");
+        } finally {
+            LowLatencyMode.unregister(mSched);
+        }
+    }
+}
@@ -19,28 +19,62 @@
 
 package com.emanuelef.touchinjector.ime;
 
+import android.content.Context;
+import android.hardware.Sensor;
+import android.hardware.SensorEvent;
+import android.hardware.SensorEventListener;
+import android.hardware.SensorManager;
+import android.hardware.input.InputManager;
 import android.inputmethodservice.InputMethodService;
+import android.os.Build;
+import android.os.Handler;
+import android.os.Looper;
 import android.util.Log;
+import android.util.SparseIntArray;
 import android.view.InputDevice;
 import android.view.KeyEvent;
 import android.view.MotionEvent;
 
-public class JoyconsIME extends InputMethodService {
+import com.emanuelef.touchinjector.InjectorWatchdog;
+
+public class JoyconsIME extends InputMethodService implements InputManager.InputDeviceListener,
+        SensorEventListener {
     private static final String TAG = "JoyconsIME";
     public static int X_AXIS = 0x10;
     public static int Y_AXIS = 0x0f;
 
-    private int mLeftJoycon = -1;
-    private int mRightJoycon = -1;
+    // Min interval between the samples of a batched MotionEvent passed to the handler
+    private static final long RESAMPLE_INTERVAL = 4; // ms
+
+    private static final int NOT_A_JOYCON = 0;
+    private static final int LEFT_JOYCON = 1;
+    private static final int RIGHT_JOYCON = 2;
+
+    private final SparseIntArray mJoycons = new SparseIntArray();
+    private InputManager mInputManager;
     private IInputHandler mInputHandler;
+    private final Handler mHandler = new Handler(Looper.getMainLooper());
+    private final Runnable mSettleSticks = () -> mInputHandler.settleSticks();
+    private InputInjector mInjector;
+    private float[] mXs = new float[16];
+    private float[] mYs = new float[16];
+    private long[] mTimes = new long[16];
+    private SensorManager mGyroManager;
+    private int mGyroDeviceId = -1;
 
     @Override
     public void onCreate() {
         Log.d(TAG, "onCreate");
         super.onCreate();
 
+        Delays.load(this);
+        InjectorWatchdog.start(getFilesDir(), line -> Log.w(TAG, line));
         InputInjector.start();
         mInputHandler = new InputHandlerBS();
+        mInjector = InputInjector.getInstance();
+
+        mInputManager = (InputManager) getSystemService(Context.INPUT_SERVICE);
+        mInputManager.registerInputDeviceListener(this, null);
 
         reloadJoycons();
     }
@@ -49,7 +83,11 @@ public class JoyconsIME extends InputMethodService {
     public void onDestroy() {
         Log.d(TAG, "onDestroy");
 
+        mInputManager.unregisterInputDeviceListener(this);
+        mHandler.removeCallbacks(mSettleSticks);
+        stopGyro();
         InputInjector.end();
+        InjectorWatchdog.stop();
 
         Log.d(TAG, "onDestroy done");
 
@@ -59,26 +97,101 @@ public class JoyconsIME extends InputMethodService {
     private void reloadJoycons() {
         int[] deviceIds = InputDevice.getDeviceIds();
 
-        mRightJoycon = -1;
-        mLeftJoycon = -1;
-
         Log.d(TAG, "Reloading joycon IDs");
+        mJoycons.clear();
+        stopGyro();
+
+        for (int deviceId : deviceIds)
+            updateDevice(deviceId);
+    }
+
+    private void updateDevice(int deviceId) {
+        InputDevice dev = InputDevice.getDevice(deviceId);
+        mJoycons.delete(deviceId);
+
+        if(deviceId == mGyroDeviceId)
+            stopGyro();
+
+        if(dev == null)
+            return;
+
+        if(dev.getName().contains("Joy-Con (R)")) {
+            Log.d(TAG, "Right joycon found: " + dev.getId());
+            mJoycons.put(deviceId, RIGHT_JOYCON);
+            startGyro(dev);
+        } else if(dev.getName().contains("Joy-Con (L)")) {
+            Log.d(TAG, "Left joycon found: " + dev.getId());
+            mJoycons.put(deviceId, LEFT_JOYCON);
+        }
+    }
+
+    @Override
+    public void onInputDeviceAdded(int deviceId) {
+        updateDevice(deviceId);
+    }
+
+    @Override
+    public void onInputDeviceRemoved(int deviceId) {
+        mJoycons.delete(deviceId);
+
+        if(deviceId == mGyroDeviceId)
+            stopGyro();
+    }
+
+    @Override
+    public void onInputDeviceChanged(int deviceId) {
+        updateDevice(deviceId);
+    }
+
+    // The right joycon gyro is used for aiming. The controllers sensors are only exposed on
+    // Android 12+, via InputDevice.getSensorManager, which is not in the compile SDK.
+    private void startGyro(InputDevice dev) {
+        if((Build.VERSION.SDK_INT < 31) || (mGyroManager != null))
+            return;
+
+        try {
+            SensorManager manager = (SensorManager) InputDevice.class.getMethod("getSensorManager").invoke(dev);
+            Sensor gyro = (manager != null) ? manager.getDefaultSensor(Sensor.TYPE_GYROSCOPE) : null;
 
-        for (int deviceId : deviceIds) {
-            InputDevice dev = InputDevice.getDevice(deviceId);
+            if(gyro == null) {
+                Log.d(TAG, "No gyroscope on " + dev.getName());
+                return;
+            }
 
-            if(dev.getName().contains("Joy-Con (R)")) {
-                Log.d(TAG, "Right joycon found: " + dev.getId());
-                mRightJoycon = dev.getId();
-            } else if(dev.getName().contains("Joy-Con (L)")) {
-                Log.d(TAG, "Left joycon found: " + dev.getId());
-                mLeftJoycon = dev.getId();
+            if(manager.registerListener(this, gyro, SensorManager.SENSOR_DELAY_FASTEST)) {
+                Log.d(TAG, "Gyroscope enabled: " + gyro.getName());
+                mGyroManager = manager;
+                mGyroDeviceId = dev.getId();
             }
+        } catch (ReflectiveOperationException e) {
+            e.printStackTrace();
         }
     }
 
+    private void stopGyro() {
+        if(mGyroManager == null)
+            return;
+
+        mGyroManager.unregisterListener(this);
+        mGyroManager = null;
+        mGyroDeviceId = -1;
+    }
+
+    @Override
+    public void onSensorChanged(SensorEvent event) {
+        // Called on the main thread, like the input events
+        mInputHandler.onGyro(event.timestamp, event.values[0], event.values[1], event.values[2]);
+    }
+
+    @Override
+    public void onAccuracyChanged(Sensor sensor, int accuracy) {}
+
     private boolean isJoyconDevice(int id) {
-        return((id != -1) && ((id == mLeftJoycon) || (id == mRightJoycon)));
+        return(mJoycons.get(id, NOT_A_JOYCON) != NOT_A_JOYCON);
+    }
+
+    private boolean isLeftJoycon(int id) {
+        return(mJoycons.get(id, NOT_A_JOYCON) == LEFT_JOYCON);
     }
 
     @Override
@@ -86,7 +199,7 @@ public class JoyconsIME extends InputMethodService {
         if(!isJoyconDevice(event.getDeviceId()))
             return super.onKeyDown(keyCode, event);
 
-        onKey(event.getDeviceId(), keyCode, true);
+        onKey(event.getDeviceId(), keyCode, true, event.getEventTime());
         return true; // processed
     }
 
@@ -95,7 +208,7 @@ public class JoyconsIME extends InputMethodService {
         if(!isJoyconDevice(event.getDeviceId()))
             return super.onKeyDown(keyCode, event);
 
-        onKey(event.getDeviceId(), keyCode, false);
+        onKey(event.getDeviceId(), keyCode, false, event.getEventTime());
         return true; // processed
     }
 
@@ -104,10 +217,7 @@ public class JoyconsIME extends InputMethodService {
         if(!isJoyconDevice(event.getDeviceId()) || (event.getAction() != MotionEvent.ACTION_MOVE))
             return super.onGenericMotionEvent(event);
 
-        //for(int i=0; i<event.getHistorySize(); i++)
-        //processAxisEvent(event.getHistoricalAxisValue(X_AXIS, i), event.getHistoricalAxisValue(Y_AXIS, i));
-
-        processAxisEvent(event.getDeviceId(), event.getAxisValue(X_AXIS), event.getAxisValue(Y_AXIS));
+        processAxisEvent(event);
 
         return true; // processed
     }
@@ -133,26 +243,63 @@ public class JoyconsIME extends InputMethodService {
         }
     }
 
-    private void onKey(int devId, int keyCode, boolean pressed) {
-        boolean isLeft = (devId == mLeftJoycon);
+    private void onKey(int devId, int keyCode, boolean pressed, long eventTime) {
+        boolean isLeft = isLeftJoycon(devId);
         GamepadKey key = code2Key(isLeft, keyCode);
 
         Log.d(TAG, "onKey[" + (pressed ? "PRESS" : "RELEASE") + "] " + key.name() + " (" + keyCode + ")");
 
-        if(key != GamepadKey.K_UNKNOWN)
+        if(key != GamepadKey.K_UNKNOWN) {
+            mInjector.setEventTime(eventTime);
             mInputHandler.onKey(key, pressed);
+            mInjector.setEventTime(0);
+        }
     }
 
-    private void processAxisEvent(int devId, float x, float y) {
-        boolean isLeft = (devId == mLeftJoycon);
+    // Passes all the samples batched into the event to the handler, resampled to RESAMPLE_INTERVAL
+    private void processAxisEvent(MotionEvent event) {
+        boolean isLeft = isLeftJoycon(event.getDeviceId());
+        float sign = isLeft ? -1 : 1;
+        int historySize = event.getHistorySize();
+        int count = 0;
+        long keptTime = 0; // of the last sample kept, not moved by the samples replacing it
+
+        if(mXs.length < historySize + 1) {
+            mXs = new float[historySize + 1];
+            mYs = new float[historySize + 1];
+            mTimes = new long[historySize + 1];
+        }
 
-        if(isLeft) {
-            x = -x;
-            y = -y;
+        for(int i = 0; i < historySize; i++) {
+            long when = event.getHistoricalEventTime(i);
+
+            if((count > 0) && (when - keptTime < RESAMPLE_INTERVAL))
+                count--; // replace the previous sample
+            else
+                keptTime = when;
+
+            mXs[count] = sign * event.getHistoricalAxisValue(X_AXIS, i);
+            mYs[count] = sign * event.getHistoricalAxisValue(Y_AXIS, i);
+            mTimes[count] = when;
+            count++;
         }
 
-        Log.d(TAG, "onMotion[" + (isLeft ? "L" : "R") + "]: " + x + ", " + y);
+        // The current sample is always kept
+        long when = event.getEventTime();
+
+        if((count > 0) && (when - keptTime < RESAMPLE_INTERVAL))
+            count--;
+
+        mXs[count] = sign * event.getAxisValue(X_AXIS);
+        mYs[count] = sign * event.getAxisValue(Y_AXIS);
+        mTimes[count] = when;
+        count++;
+
+        mInjector.setEventTime(when);
+        mInputHandler.onStickBatch(isLeft, mXs, mYs, mTimes, count);
+        mInjector.setEventTime(0);
 
-        mInputHandler.onStickMove(isLeft, x, y);
+        mHandler.removeCallbacks(mSettleSticks);
+        mHandler.postDelayed(mSettleSticks, IInputHandler.STICK_SETTLE_DELAY);
     }
 }
@@ -0,0 +1,213 @@
+/*
+ * This file is part of TouchInjector.
+ *
+ * TouchInjector is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * TouchInjector is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with TouchInjector.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ * Copyright 2021 - Emanuele Faranda
+ */
+
+package com.emanuelef.touchinjector.ime;
+
+import android.os.Parcel;
+import android.util.Log;
+import android.view.MotionEvent;
+
+import com.emanuelef.touchinjector.ParcelableUtil;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.Socket;
+
+// Sends the events to the Main injection server, which runs via adb with the INJECT_EVENTS
+// permission. This is the only backend which can inject into other apps without root.
+// The events are batched into a reusable buffer, which is sent with a single write when the
+// injector has no more due events, or after MAX_BATCH_DELAY.
+public class MainServerBackend implements InjectionBackend {
+    private static final String TAG = "MainServerBackend";
+    private static final String SERVER_HOST = "127.0.0.1";
+    private static final int SERVER_PORT = 7171;
+    private static final int BUFFER_SIZE = 16384;
+    private static final long MAX_BATCH_DELAY = 2000000; // ns
+
+    private final int mDisplayId;
+    private final Parcel mParcel;
+    private final MarshalCache mCache;
+    private volatile Socket mSocket;
+    private OutputStream mOutputStream;
+
+    private byte[] mBuffer;
+    private int mBuffered;
+    private int mBufferedEvents;
+    private long mBatchStart;
+    private long mNumWrites;
+    private long mNumEvents;
+    private long mNumBytes;
+    private int mMaxBatch;
+
+    public MainServerBackend(int displayId) {
+        mDisplayId = displayId;
+        mParcel = Parcel.obtain();
+        mCache = new MarshalCache();
+        mBuffer = new byte[BUFFER_SIZE];
+    }
+
+    // Number of events sent from the cached templates, see MarshalCache
+    public long getNumCacheHits() {
+        return mCache.getNumHits();
+    }
+
+    public long getNumCacheMisses() {
+        return mCache.getNumMisses();
+    }
+
+    // Number of socket writes, each one carrying a batch of events
+    public long getNumWrites() {
+        return mNumWrites;
+    }
+
+    public long getNumEvents() {
+        return mNumEvents;
+    }
+
+    public String dumpStats() {
+        return "writes=" + mNumWrites + ", events=" + mNumEvents +
+                ", bytes/write=" + ((mNumWrites > 0) ? (mNumBytes / mNumWrites) : 0) +
+                ", max events/write=" + mMaxBatch + ", cache: " + mCache.dumpStats();
+    }
+
+    @Override
+    public void inject(MotionEvent event) {
+        if(mOutputStream == null) {
+            try {
+                mSocket = new Socket(SERVER_HOST, SERVER_PORT);
+                mSocket.setTcpNoDelay(true);
+                mOutputStream = mSocket.getOutputStream();
+            } catch (IOException e) {
+                e.printStackTrace();
+                disconnect();
+                return;
+            }
+
+            // Handshake: the target display of the events
+            putInt(mDisplayId);
+        }
+
+        byte [] evBytes = mCache.get(event);
+        boolean miss = (evBytes == null);
+
+        if(miss)
+            evBytes = ParcelableUtil.marshall(event, mParcel);
+
+        if(mBufferedEvents == 0)
+            mBatchStart = System.nanoTime();
+
+        putInt(evBytes.length);
+        put(evBytes);
+        mBufferedEvents++;
+
+        if(miss)
+            mCache.put(event, evBytes);
+
+        // Cap the latency of the first event of a long burst
+        if((mBuffered >= BUFFER_SIZE) || (System.nanoTime() - mBatchStart >= MAX_BATCH_DELAY))
+            flush();
+    }
+
+    @Override
+    public void flush() {
+        if((mBuffered == 0) || (mOutputStream == null))
+            return;
+
+        try {
+            mOutputStream.write(mBuffer, 0, mBuffered);
+
+            mNumWrites++;
+            mNumEvents += mBufferedEvents;
+            mNumBytes += mBuffered;
+            mMaxBatch = Math.max(mMaxBatch, mBufferedEvents);
+        } catch (IOException e) {
+            e.printStackTrace();
+            disconnect();
+        }
+
+        mBuffered = 0;
+        mBufferedEvents = 0;
+    }
+
+    private void ensureCapacity(int size) {
+        if(mBuffered + size <= mBuffer.length)
+            return;
+
+        byte[] buffer = new byte[Math.max(mBuffer.length * 2, mBuffered + size)];
+        System.arraycopy(mBuffer, 0, buffer, 0, mBuffered);
+        mBuffer = buffer;
+    }
+
+    // Big endian, as read by the DataInputStream of the server
+    private void putInt(int val) {
+        ensureCapacity(4);
+        mBuffer[mBuffered++] = (byte) (val >>> 24);
+        mBuffer[mBuffered++] = (byte) (val >>> 16);
+        mBuffer[mBuffered++] = (byte) (val >>> 8);
+        mBuffer[mBuffered++] = (byte) val;
+    }
+
+    private void put(byte[] bytes) {
+        ensureCapacity(bytes.length);
+        System.arraycopy(bytes, 0, mBuffer, mBuffered, bytes.length);
+        mBuffered += bytes.length;
+    }
+
+    // Can be called from any thread, e.g. when the injector is stuck on a write: closing the socket
+    // fails the write, the next event reconnects
+    public void abort() {
+        Socket socket = mSocket;
+
+        try {
+            if(socket != null)
+                socket.close();
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
+
+    // The events not sent yet are dropped, the next one reconnects
+    private void disconnect() {
+        try {
+            if(mSocket != null)
+                mSocket.close();
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+
+        mSocket = null;
+        mOutputStream = null;
+        mBuffered = 0;
+        mBufferedEvents = 0;
+    }
+
+    @Override
+    public void close() {
+        flush();
+        Log.d(TAG, dumpStats());
+
+        disconnect();
+        mParcel.recycle();
+    }
+
+    @Override
+    public String getName() {
+        return "main_server";
+    }
+}
@@ -0,0 +1,303 @@
+/*
+ * This file is part of TouchInjector.
+ *
+ * TouchInjector is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * TouchInjector is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with TouchInjector.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ * Copyright 2021 - Emanuele Faranda
+ */
+
+package com.emanuelef.touchinjector.ime;
+
+import android.util.Log;
+import android.view.MotionEvent;
+import android.view.MotionEvent.PointerCoords;
+import android.view.MotionEvent.PointerProperties;
+
+import com.emanuelef.touchinjector.ParcelableUtil;
+
+// Caches the marshalled events with a fixed layout (action, pointer ids and coordinates), e.g. the
+// pins taps and the sticks presses, so that only their timestamps need to be patched when they
+// are sent again. A layout gets a template the second time it's seen, which keeps the unique
+// sticks moves out of the cache. The slots are direct-mapped by the layout hash.
+// The timestamps offsets are found by diffing the event with copies marshalled with different
+// times, as the parcel format depends on the Android version. If they cannot be found, or the
+// patched template does not match a fresh marshall, the cache disables itself.
+// Not thread safe, the events are sent by the injector thread.
+class MarshalCache {
+    private static final String TAG = "MarshalCache";
+    private static final int NUM_SLOTS = 32;
+    private static final int MAX_POINTERS = 16;
+    private static final long PROBE_DELTA = 1000; // ms
+    private static final long MS_TO_NS = 1000000;
+
+    private static class Slot {
+        int mHash;
+        int mAction;
+        int mNumPointers;
+        final int[] mIds = new int[MAX_POINTERS];
+        final float[] mXs = new float[MAX_POINTERS];
+        final float[] mYs = new float[MAX_POINTERS];
+
+        byte[] mTemplate;
+        long mDownTime;
+        long mEventTime;
+        // The timestamps fields, in the template
+        int mNumFields;
+        final int[] mOffsets = new int[4];
+        final long[] mValues = new long[4];
+        final long[] mScales = new long[4];
+        final boolean[] mIsDownTime = new boolean[4];
+    }
+
+    private final Slot[] mSlots = new Slot[NUM_SLOTS];
+    private final PointerProperties[] mProps = new PointerProperties[MAX_POINTERS];
+    private final PointerCoords[] mCoords = new PointerCoords[MAX_POINTERS];
+    private boolean mDisabled;
+    private long mNumHits;
+    private long mNumMisses;
+    private long mNumTemplates;
+
+    MarshalCache() {
+        for(int i = 0; i < NUM_SLOTS; i++)
+            mSlots[i] = new Slot();
+
+        for(int i = 0; i < MAX_POINTERS; i++) {
+            mProps[i] = new PointerProperties();
+            mCoords[i] = new PointerCoords();
+        }
+    }
+
+    // Returns the marshalled event, patched from the cached template. The returned buffer is only
+    // valid until the next call.
+    byte[] get(MotionEvent event) {
+        if(mDisabled || (event.getPointerCount() > MAX_POINTERS))
+            return null;
+
+        int hash = hash(event);
+        Slot slot = mSlots[hash & (NUM_SLOTS - 1)];
+
+        if((slot.mTemplate == null) || !matches(slot, hash, event)) {
+            mNumMisses++;
+            return null;
+        }
+
+        patch(slot, event.getDownTime(), event.getEventTime());
+        mNumHits++;
+        return slot.mTemplate;
+    }
+
+    private static void patch(Slot slot, long downTime, long eventTime) {
+        long downDelta = downTime - slot.mDownTime;
+        long eventDelta = eventTime - slot.mEventTime;
+
+        for(int i = 0; i < slot.mNumFields; i++) {
+            long delta = slot.mIsDownTime[i] ? downDelta : eventDelta;
+            writeLong(slot.mTemplate, slot.mOffsets[i], slot.mValues[i] + delta * slot.mScales[i]);
+        }
+    }
+
+    // Called with the bytes marshalled on a miss. The bytes are owned by the cache afterwards.
+    void put(MotionEvent event, byte[] bytes) {
+        if(mDisabled || (event.getPointerCount() > MAX_POINTERS))
+            return;
+
+        int hash = hash(event);
+        Slot slot = mSlots[hash & (NUM_SLOTS - 1)];
+
+        if(!matches(slot, hash, event)) {
+            // First time seen, only remember the layout
+            setLayout(slot, hash, event);
+            slot.mTemplate = null;
+            return;
+        }
+
+        if(slot.mTemplate != null)
+            return;
+
+        if(!buildTemplate(slot, event, bytes)) {
+            Log.w(TAG, "Cannot locate the timestamps in the parcel, disabling the cache");
+            mDisabled = true;
+            return;
+        }
+
+        mNumTemplates++;
+    }
+
+    long getNumHits() {
+        return mNumHits;
+    }
+
+    long getNumMisses() {
+        return mNumMisses;
+    }
+
+    String dumpStats() {
+        return "hits=" + mNumHits + ", misses=" + mNumMisses + ", templates=" + mNumTemplates +
+                (mDisabled ? " (disabled)" : "");
+    }
+
+    private static int hash(MotionEvent event) {
+        int hash = event.getAction();
+
+        for(int i = 0; i < event.getPointerCount(); i++) {
+            hash = 31 * hash + event.getPointerId(i);
+            hash = 31 * hash + Float.floatToIntBits(event.getX(i));
+            hash = 31 * hash + Float.floatToIntBits(event.getY(i));
+        }
+
+        return hash ^ (hash >>> 16);
+    }
+
+    private static boolean matches(Slot slot, int hash, MotionEvent event) {
+        int numPointers = event.getPointerCount();
+
+        if((slot.mHash != hash) || (slot.mAction != event.getAction()) || (slot.mNumPointers != numPointers))
+            return false;
+
+        for(int i = 0; i < numPointers; i++) {
+            if((slot.mIds[i] != event.getPointerId(i)) || (slot.mXs[i] != event.getX(i)) ||
+                    (slot.mYs[i] != event.getY(i)))
+                return false;
+        }
+
+        return true;
+    }
+
+    private static void setLayout(Slot slot, int hash, MotionEvent event) {
+        slot.mHash = hash;
+        slot.mAction = event.getAction();
+        slot.mNumPointers = event.getPointerCount();
+
+        for(int i = 0; i < slot.mNumPointers; i++) {
+            slot.mIds[i] = event.getPointerId(i);
+            slot.mXs[i] = event.getX(i);
+            slot.mYs[i] = event.getY(i);
+        }
+    }
+
+    private boolean buildTemplate(Slot slot, MotionEvent event, byte[] bytes) {
+        long downTime = event.getDownTime();
+        long eventTime = event.getEventTime();
+        byte[] downProbe = marshallAt(event, downTime - PROBE_DELTA, eventTime);
+        byte[] eventProbe = marshallAt(event, downTime, eventTime + PROBE_DELTA);
+
+        slot.mNumFields = 0;
+
+        if(!findFields(slot, bytes, downProbe, -PROBE_DELTA, true) ||
+                !findFields(slot, bytes, eventProbe, PROBE_DELTA, false))
+            return false;
+
+        slot.mTemplate = bytes;
+        slot.mDownTime = downTime;
+        slot.mEventTime = eventTime;
+
+        // The patched template must match a fresh marshall, except for the event id (Android 11+)
+        byte[] check = marshallAt(event, downTime - PROBE_DELTA, eventTime + PROBE_DELTA);
+        patch(slot, downTime - PROBE_DELTA, eventTime + PROBE_DELTA);
+
+        boolean valid = (countDiffs(slot.mTemplate, check) <= 4);
+        patch(slot, downTime, eventTime);
+
+        if(!valid)
+            slot.mTemplate = null;
+
+        return valid;
+    }
+
+    // Locates the 64 bit fields which changed by delta, in ms or ns. Other differences of up to
+    // 4 bytes are tolerated, as each obtained event may get a new id.
+    private static boolean findFields(Slot slot, byte[] base, byte[] probe, long delta, boolean isDownTime) {
+        if(base.length != probe.length)
+            return false;
+
+        int numFound = 0;
+        int unexplained = 0;
+
+        for(int off = 0; off < base.length; ) {
+            if(base[off] == probe[off]) {
+                off++;
+                continue;
+            }
+
+            // Parcel fields are 4 bytes aligned
+            int field = off & ~3;
+            long diff = (field + 8 <= base.length) ? (readLong(probe, field) - readLong(base, field)) : 0;
+            long scale = (diff == delta * MS_TO_NS) ? MS_TO_NS : ((diff == delta) ? 1 : 0);
+
+            if((scale != 0) && (slot.mNumFields < slot.mOffsets.length)) {
+                int i = slot.mNumFields++;
+                slot.mOffsets[i] = field;
+                slot.mValues[i] = readLong(base, field);
+                slot.mScales[i] = scale;
+                slot.mIsDownTime[i] = isDownTime;
+                numFound++;
+                off = field + 8;
+            } else {
+                unexplained++;
+                off++;
+            }
+        }
+
+        return((numFound > 0) && (unexplained <= 4));
+    }
+
+    private byte[] marshallAt(MotionEvent event, long downTime, long eventTime) {
+        int numPointers = event.getPointerCount();
+
+        for(int i = 0; i < numPointers; i++) {
+            event.getPointerProperties(i, mProps[i]);
+            event.getPointerCoords(i, mCoords[i]);
+        }
+
+        MotionEvent probe = MotionEvent.obtain(downTime, eventTime, event.getAction(),
+                numPointers, mProps, mCoords, event.getMetaState(), event.getButtonState(),
+                event.getXPrecision(), event.getYPrecision(), event.getDeviceId(), event.getEdgeFlags(),
+                event.getSource(), event.getFlags());
+
+        byte[] bytes = ParcelableUtil.marshall(probe);
+        probe.recycle();
+        return bytes;
+    }
+
+    private static int countDiffs(byte[] a, byte[] b) {
+        if(a.length != b.length)
+            return Integer.MAX_VALUE;
+
+        int count = 0;
+
+        for(int i = 0; i < a.length; i++) {
+            if(a[i] != b[i])
+                count++;
+        }
+
+        return count;
+    }
+
+    // Parcels use the native byte order, little endian on all the Android ABIs
+    private static long readLong(byte[] buf, int off) {
+        long val = 0;
+
+        for(int i = 7; i >= 0; i--)
+            val = (val << 8) | (buf[off + i] & 0xFF);
+
+        return val;
+    }
+
+    private static void writeLong(byte[] buf, int off, long val) {
+        for(int i = 0; i < 8; i++) {
+            buf[off + i] = (byte) val;
+            val >>>= 8;
+        }
+    }
+}
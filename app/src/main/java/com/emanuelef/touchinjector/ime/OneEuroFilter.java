@@ -0,0 +1,118 @@
+/*
+ * This file is part of TouchInjector.
+ *
+ * TouchInjector is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * TouchInjector is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with TouchInjector.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ * Copyright 2021 - Emanuele Faranda
+ */
+
+package com.emanuelef.touchinjector.ime;
+
+// The One Euro filter (Casiez et al.), an adaptive low-pass filter: the cutoff frequency increases with
+// the stick speed, so that the jitter is smoothed when the stick is (almost) still without adding
+// lag to fast movements. The stick center is passed through as it is, to release the stick promptly.
+// As the filtered value only converges while samples arrive, an input which stays the same for
+// SNAP_TIME is passed through as it is, e.g. when the stick is held after a flick (see isSettled).
+public class OneEuroFilter implements StickFilter {
+    private static final long SNAP_TIME = 80; // ms
+    private final float mMinCutoff;
+    private final float mBeta;
+    private final float mDerivateCutoff;
+    private final float[] mPrev = new float[2];
+    private final float[] mPrevDerivate = new float[2];
+    private final float[] mRaw = new float[2];
+    private long mStableSince;
+    private long mLastTime;
+    private boolean mInitialized;
+
+    // minCutoff: Hz, at low speed. beta: cutoff increase (Hz) per stick unit/s of speed. derivateCutoff: Hz
+    public OneEuroFilter(float minCutoff, float beta, float derivateCutoff) {
+        mMinCutoff = minCutoff;
+        mBeta = beta;
+        mDerivateCutoff = derivateCutoff;
+        reset();
+    }
+
+    private static float alpha(float cutoff, float dt) {
+        float tau = (float) (1.0 / (2 * Math.PI * cutoff));
+        return 1.0f / (1.0f + tau / dt);
+    }
+
+    @Override
+    public boolean filter(long when, float[] xy) {
+        if((xy[0] == 0) && (xy[1] == 0)) {
+            reset();
+            return true;
+        }
+
+        if(!mInitialized) {
+            mPrev[0] = xy[0];
+            mPrev[1] = xy[1];
+            mPrevDerivate[0] = 0;
+            mPrevDerivate[1] = 0;
+            mRaw[0] = xy[0];
+            mRaw[1] = xy[1];
+            mStableSince = when;
+            mLastTime = when;
+            mInitialized = true;
+            return true;
+        }
+
+        if((xy[0] == mRaw[0]) && (xy[1] == mRaw[1])) {
+            if(when - mStableSince >= SNAP_TIME) {
+                mPrev[0] = xy[0];
+                mPrev[1] = xy[1];
+                mPrevDerivate[0] = 0;
+                mPrevDerivate[1] = 0;
+                mLastTime = when;
+                return true;
+            }
+        } else {
+            mRaw[0] = xy[0];
+            mRaw[1] = xy[1];
+            mStableSince = when;
+        }
+
+        float dt = Math.max((when - mLastTime) / 1000.f, 0.001f);
+        mLastTime = when;
+
+        for(int i = 0; i < 2; i++) {
+            float derivate = (xy[i] - mPrev[i]) / dt;
+            float ad = alpha(mDerivateCutoff, dt);
+            mPrevDerivate[i] += ad * (derivate - mPrevDerivate[i]);
+
+            float cutoff = mMinCutoff + mBeta * Math.abs(mPrevDerivate[i]);
+            float a = alpha(cutoff, dt);
+            mPrev[i] += a * (xy[i] - mPrev[i]);
+            xy[i] = mPrev[i];
+        }
+
+        return true;
+    }
+
+    @Override
+    public boolean isSettled() {
+        return !mInitialized || ((mPrev[0] == mRaw[0]) && (mPrev[1] == mRaw[1]));
+    }
+
+    @Override
+    public void reset() {
+        mInitialized = false;
+    }
+
+    @Override
+    public String getName() {
+        return "one-euro";
+    }
+}
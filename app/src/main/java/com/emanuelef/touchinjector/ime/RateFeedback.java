@@ -0,0 +1,156 @@
+/*
+ * This file is part of TouchInjector.
+ *
+ * TouchInjector is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * TouchInjector is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with TouchInjector.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ * Copyright 2021 - Emanuele Faranda
+ */
+
+package com.emanuelef.touchinjector.ime;
+
+import android.os.SystemClock;
+import android.util.Log;
+
+import java.io.IOException;
+import java.io.OutputStream;
+
+// Periodically advertises the InputInjector state to the connected client, so that it can adapt
+// its sticks sample rate to what the device can absorb. The message format is:
+//   FEEDBACK|<queue_depth>|<queue_capacity>|<injected_per_sec>|<max_rate_hz>
+// The max rate follows an additive increase / multiplicative decrease policy driven by the
+// injector queue depth.
+// When a JitterBuffer is active, its state is also reported as:
+//   JITTER|<depth>|<delay_ms>|<late>|<dropped>
+class RateFeedback {
+    private static final String TAG = "RateFeedback";
+    private static final long INTERVAL = 100; // ms
+    private static final int MIN_RATE = 20;
+    private static final int MAX_RATE = 250;
+    private static final int INITIAL_RATE = 100; // matches the 10 ms interval of the host script
+    private static final int RATE_STEP = 10;
+    private static final int LOW_WATERMARK = 4;
+    private static final int HIGH_WATERMARK = 32;
+
+    private final OutputStream mOutput;
+    private volatile InputInjector mInjector;
+    private Thread mThread;
+    private volatile boolean mRunning;
+    private volatile long mNumSamples;
+    private volatile JitterBuffer mJitterBuffer;
+    private int mMaxRate;
+
+    RateFeedback(OutputStream output, InputInjector injector) {
+        mOutput = output;
+        mInjector = injector;
+        mMaxRate = INITIAL_RATE;
+    }
+
+    // Must be called by the thread which reads the client commands for each stick sample
+    void onStickSample() {
+        mNumSamples++;
+    }
+
+    // The injector of the display targeted by the commands
+    void setInjector(InputInjector injector) {
+        mInjector = injector;
+    }
+
+    void setJitterBuffer(JitterBuffer jitterBuffer) {
+        mJitterBuffer = jitterBuffer;
+    }
+
+    void start() {
+        mRunning = true;
+        mThread = new Thread(this::run);
+        mThread.start();
+    }
+
+    void stop() {
+        mRunning = false;
+
+        if(mThread == null)
+            return;
+
+        mThread.interrupt();
+
+        while(mThread.isAlive()) {
+            try {
+                mThread.join();
+            } catch (InterruptedException e) {
+                Log.e(TAG, "Joining thread failed");
+            }
+        }
+
+        mThread = null;
+    }
+
+    private void run() {
+        long lastMillis = SystemClock.uptimeMillis();
+        InputInjector lastInjector = mInjector;
+        long lastInjected = lastInjector.getNumInjected();
+        long lastSamples = mNumSamples;
+
+        while(mRunning) {
+            try {
+                Thread.sleep(INTERVAL);
+            } catch (InterruptedException e) {
+                break;
+            }
+
+            long millis = SystemClock.uptimeMillis();
+            InputInjector injector = mInjector;
+
+            // The counters of another display are not comparable
+            if(injector != lastInjector) {
+                lastInjector = injector;
+                lastInjected = injector.getNumInjected();
+            }
+
+            long injected = injector.getNumInjected();
+            long samples = mNumSamples;
+            long elapsed = Math.max(millis - lastMillis, 1);
+            int depth = injector.getQueueDepth();
+            int injectRate = (int) ((injected - lastInjected) * 1000 / elapsed);
+            int sampleRate = (int) ((samples - lastSamples) * 1000 / elapsed);
+
+            if(depth >= HIGH_WATERMARK)
+                mMaxRate = Math.max(MIN_RATE, Math.min(mMaxRate, Math.max(sampleRate, MIN_RATE)) / 2);
+            else if(depth <= LOW_WATERMARK)
+                mMaxRate = Math.min(MAX_RATE, mMaxRate + RATE_STEP);
+
+            lastMillis = millis;
+            lastInjected = injected;
+            lastSamples = samples;
+
+            String msg = "FEEDBACK|" + depth + "|" + injector.getQueueCapacity() + "|" +
+                    injectRate + "|" + mMaxRate + "\n";
+            JitterBuffer jitterBuffer = mJitterBuffer;
+
+            if(jitterBuffer != null)
+                msg += "JITTER|" + jitterBuffer.getDepth() + "|" + jitterBuffer.getDelay() + "|" +
+                        jitterBuffer.getNumLate() + "|" + jitterBuffer.getNumDropped() + "\n";
+
+            // NOTE: SocketIME writes on the same stream
+            synchronized (mOutput) {
+                try {
+                    mOutput.write(msg.getBytes());
+                    mOutput.flush();
+                } catch (IOException e) {
+                    Log.d(TAG, "Feedback write failed: " + e.getMessage());
+                    break;
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,117 @@
+/*
+ * This file is part of TouchInjector.
+ *
+ * TouchInjector is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * TouchInjector is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with TouchInjector.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ * Copyright 2021 - Emanuele Faranda
+ */
+
+package com.emanuelef.touchinjector.ime;
+
+import android.graphics.PointF;
+import android.util.Log;
+
+// Drives the InputInjector pointers directly, in screen coordinates, for the scripted automation
+// (see the T_* commands in SocketIME). The raw pointers ids are mapped above the ones used by the
+// game handler, so that the two can be used together. Several pointers changed within a frame
+// (see InputInjector.beginFrame) are injected with a single event.
+class RawTouchHandler {
+    private static final String TAG = "RawTouchHandler";
+    static final int MAX_POINTERS = 8;
+    private static final int POINTER_BASE = 8;
+    private static final long SWIPE_STEP = 8; // ms
+
+    private final InputInjector mInjector;
+    private final PointF mPos;
+
+    RawTouchHandler(InputInjector injector) {
+        mInjector = injector;
+        mPos = new PointF();
+    }
+
+    private static boolean isValid(int id) {
+        if((id >= 0) && (id < MAX_POINTERS))
+            return true;
+
+        Log.w(TAG, "Invalid pointer: " + id);
+        return false;
+    }
+
+    void down(int id, float x, float y) {
+        if(!isValid(id))
+            return;
+
+        mPos.set(x, y);
+        mInjector.touchDown(POINTER_BASE + id, mPos);
+    }
+
+    void move(int id, float x, float y) {
+        if(!isValid(id))
+            return;
+
+        mPos.set(x, y);
+        mInjector.touchMove(POINTER_BASE + id, mPos);
+    }
+
+    void up(int id) {
+        if(isValid(id))
+            mInjector.touchUp(POINTER_BASE + id);
+    }
+
+    // Releases the pointers still pressed, after their queued gestures
+    void releaseAll() {
+        for(int id = 0; id < MAX_POINTERS; id++) {
+            if(mInjector.isPressed(POINTER_BASE + id))
+                mInjector.touchUp(POINTER_BASE + id);
+        }
+    }
+
+    // Runs the callback once the gestures posted so far have been played
+    void sync(Runnable callback) {
+        mInjector.runWhenInjected(callback);
+    }
+
+    // Presses the pointer for duration ms
+    void tap(int id, float x, float y, long duration) {
+        if(!isValid(id))
+            return;
+
+        down(id, x, y);
+        mInjector.addDelay(Math.max(duration, Delays.downToMove));
+        up(id);
+    }
+
+    // Moves the pointer from (x1, y1) to (x2, y2) in duration ms, then releases it
+    void swipe(int id, float x1, float y1, float x2, float y2, long duration) {
+        if(!isValid(id))
+            return;
+
+        int steps = (int) Math.max(duration / SWIPE_STEP, 1);
+
+        down(id, x1, y1);
+        mInjector.addDelay(Delays.downToMove);
+
+        for(int i = 1; i <= steps; i++) {
+            float t = (float) i / steps;
+
+            if(i > 1)
+                mInjector.addDelay(SWIPE_STEP);
+
+            move(id, x1 + (x2 - x1) * t, y1 + (y2 - y1) * t);
+        }
+
+        mInjector.addDelay(Delays.moveToUp);
+        up(id);
+    }
+}
@@ -0,0 +1,80 @@
+/*
+ * This file is part of TouchInjector.
+ *
+ * TouchInjector is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * TouchInjector is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with TouchInjector.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ * Copyright 2021 - Emanuele Faranda
+ */
+
+package com.emanuelef.touchinjector.ime;
+
+import android.os.SystemClock;
+import android.view.MotionEvent;
+
+// Discards the events, only recording the action and the timing of the last ones. It measures the
+// cost of the injector pipeline alone and lets the tests check what would have been injected.
+public class RecordingBackend implements InjectionBackend {
+    private static final int NUM_RECORDS = 256;
+
+    private final int[] mActions = new int[NUM_RECORDS];
+    private final long[] mEventTimes = new long[NUM_RECORDS];
+    private final long[] mInjectTimes = new long[NUM_RECORDS];
+    private long mNumEvents;
+
+    @Override
+    public synchronized void inject(MotionEvent event) {
+        int idx = (int) (mNumEvents % NUM_RECORDS);
+
+        mActions[idx] = event.getActionMasked();
+        mEventTimes[idx] = event.getEventTime();
+        mInjectTimes[idx] = SystemClock.uptimeMillis();
+        mNumEvents++;
+    }
+
+    @Override
+    public void flush() {}
+
+    @Override
+    public void close() {}
+
+    @Override
+    public String getName() {
+        return "recording";
+    }
+
+    public synchronized long getNumEvents() {
+        return mNumEvents;
+    }
+
+    // Returns the index of the last recorded event with the given action, -1 if none.
+    // The index is valid until NUM_RECORDS more events are recorded.
+    public synchronized long findLast(int action) {
+        long first = Math.max(mNumEvents - NUM_RECORDS, 0);
+
+        for(long i = mNumEvents - 1; i >= first; i--) {
+            if(mActions[(int) (i % NUM_RECORDS)] == action)
+                return i;
+        }
+
+        return -1;
+    }
+
+    public synchronized long getInjectTime(long idx) {
+        return mInjectTimes[(int) (idx % NUM_RECORDS)];
+    }
+
+    public synchronized long getEventTime(long idx) {
+        return mEventTimes[(int) (idx % NUM_RECORDS)];
+    }
+}
@@ -0,0 +1,110 @@
+/*
+ * This file is part of TouchInjector.
+ *
+ * TouchInjector is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * TouchInjector is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with TouchInjector.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ * Copyright 2021 - Emanuele Faranda
+ */
+
+package com.emanuelef.touchinjector.ime;
+
+// Maps the stick deflection, in the [0, 1] range, to the on-screen one. A curve is defined by a
+// spec of comma separated key=value pairs, e.g. "inner=0.05,outer=0.95,anti=0.1,expo=0.4":
+//   inner: inner deadzone, smaller deflections are mapped to 0
+//   outer: outer deadzone, bigger deflections are mapped to 1
+//   anti: anti-deadzone, the output for the smallest deflection outside the inner deadzone
+//   gamma: power curve, > 1 for a finer aim near the center
+//   expo: blend (0-1) with a cubic curve
+//   s: blend (0-1) with an S-curve, finer both near the center and near the edge
+// The curve is compiled into a lookup table, so that apply does not need Math.pow.
+public class ResponseCurve {
+    private static final int LUT_SIZE = 256;
+
+    private final float[] mLut;
+    private final float mInner;
+    private final String mSpec;
+
+    private ResponseCurve(String spec, float inner, float outer, float anti, float gamma, float expo, float s) {
+        mSpec = spec;
+        mInner = inner;
+        mLut = new float[LUT_SIZE + 1];
+
+        for(int i = 0; i <= LUT_SIZE; i++) {
+            float r = (float) i / LUT_SIZE;
+
+            if(r <= inner) {
+                mLut[i] = 0;
+                continue;
+            }
+
+            double t = Math.min((r - inner) / (outer - inner), 1);
+            t = Math.pow(t, gamma);
+            t = (1 - expo) * t + expo * t * t * t;
+            t = (1 - s) * t + s * t * t * (3 - 2 * t);
+
+            mLut[i] = (float) (anti + (1 - anti) * t);
+        }
+    }
+
+    // Throws IllegalArgumentException on an invalid spec. An empty spec gives a linear curve.
+    public static ResponseCurve parse(String spec) {
+        float inner = 0, outer = 1, anti = 0, gamma = 1, expo = 0, s = 0;
+
+        for(String param: spec.split(",")) {
+            if(param.isEmpty())
+                continue;
+
+            String[] kv = param.split("=");
+
+            if(kv.length != 2)
+                throw new IllegalArgumentException("Invalid curve parameter: " + param);
+
+            float val = Float.parseFloat(kv[1]);
+
+            switch(kv[0]) {
+                case "inner": inner = val; break;
+                case "outer": outer = val; break;
+                case "anti": anti = val; break;
+                case "gamma": gamma = val; break;
+                case "expo": expo = val; break;
+                case "s": s = val; break;
+                default:
+                    throw new IllegalArgumentException("Unknown curve parameter: " + kv[0]);
+            }
+        }
+
+        if((inner < 0) || (outer > 1) || (inner >= outer) || (anti < 0) || (anti >= 1) || (gamma <= 0) ||
+                (expo < 0) || (expo > 1) || (s < 0) || (s > 1))
+            throw new IllegalArgumentException("Curve parameters out of range: " + spec);
+
+        return new ResponseCurve(spec, inner, outer, anti, gamma, expo, s);
+    }
+
+    // r: the stick deflection, clamped to [0, 1]
+    public float apply(float r) {
+        if(r <= mInner)
+            return 0;
+
+        float pos = Math.min(r, 1) * LUT_SIZE;
+        int i = Math.min((int) pos, LUT_SIZE - 1);
+        float frac = pos - i;
+
+        return mLut[i] + (mLut[i + 1] - mLut[i]) * frac;
+    }
+
+    @Override
+    public String toString() {
+        return mSpec;
+    }
+}
@@ -27,17 +27,25 @@ import android.app.Service;
 import android.content.Context;
 import android.content.Intent;
 import android.os.Build;
+import android.os.Handler;
 import android.os.IBinder;
+import android.os.Looper;
+import android.os.SystemClock;
 import android.util.Log;
 
+import com.emanuelef.touchinjector.AllocStats;
+import com.emanuelef.touchinjector.InjectorWatchdog;
+import com.emanuelef.touchinjector.LowLatencyMode;
 import com.emanuelef.touchinjector.MainActivity;
 import com.emanuelef.touchinjector.R;
 
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.InputStreamReader;
+import java.io.OutputStream;
 import java.net.ServerSocket;
 import java.net.Socket;
+import java.util.HashMap;
 import java.util.Scanner;
 
 import androidx.annotation.Nullable;
@@ -48,9 +56,35 @@ public class SocketIME extends Service {
     private static final String MY_NOTIFY_CHAN = "SocketIME";
     private static final int ONGOING_NOTIFICATION_ID = 1;
 
+    // How long the handlers state is kept after a client disconnects, to let it resume the session
+    private static final long SESSION_GRACE_PERIOD = 2000; // ms
+    private static final long ALLOC_STATS_INTERVAL = 5000; // ms
+
     private IInputHandler mInputHandler;
+    private InputInjector mInjector;
+    private final ClockSync mClockSync = new ClockSync();
+    private final HashMap<Integer, IInputHandler> mHandlers = new HashMap<>();
+    private final HashMap<Integer, RawTouchHandler> mRawHandlers = new HashMap<>();
     private ServerSocket mSocket;
     private Socket mClient;
+    private RateFeedback mFeedback;
+    private JitterBuffer mJitterBuffer;
+    private int mDisplayId;
+    private boolean mInFrame;
+    private ResponseCurve mLeftCurve;
+    private ResponseCurve mRightCurve;
+    private Handler mHandler;
+    private OutputStream mClientOutput;
+    private boolean mSessionStarted;
+    private long mLastStickSample;
+    private boolean mSettlePending;
+    private boolean mRawSession;
+
+    // Accessed with the object lock held
+    private String mSessionToken;
+    private boolean mResumePending;
+    private long mDisconnectedAt;
+    private long mNumResumed;
     private Thread mThread;
     private boolean mRunning = true;
     private static SocketIME mInstance = null;
@@ -60,8 +94,13 @@ public class SocketIME extends Service {
         Log.d(TAG, "onCreate");
         super.onCreate();
 
+        Delays.load(this);
+        InjectorWatchdog.start(getFilesDir(), line -> Log.w(TAG, line));
         InputInjector.start();
         mInputHandler = new InputHandlerBS();
+        mInjector = InputInjector.getInstance();
+        mHandlers.put(InputInjector.DEFAULT_DISPLAY, mInputHandler);
+        mHandler = new Handler(Looper.getMainLooper());
         mClient = null;
 
         try {
@@ -81,7 +120,10 @@ public class SocketIME extends Service {
     public void onDestroy() {
         Log.d(TAG, "onDestroy");
 
+        mHandler.removeCallbacks(mSessionExpired);
+        mHandler.removeCallbacks(mSettleSticks);
         InputInjector.end();
+        InjectorWatchdog.stop();
 
         Log.d(TAG, "onDestroy done");
 
@@ -120,6 +162,7 @@ public class SocketIME extends Service {
     }
 
     private void runInBackground() {
+        LowLatencyMode.PipelineThread sched = LowLatencyMode.register("socket_ime");
         mInstance = this;
 
         while(mRunning && !Thread.currentThread().isInterrupted()) {
@@ -134,27 +177,48 @@ public class SocketIME extends Service {
                     InputStreamReader reader = new InputStreamReader(input);
                     Scanner scanner = new Scanner(reader);
 
-                    mInputHandler.reset();
+                    // The handlers are reset or resumed on the first command, see startSession
+                    mSessionStarted = false;
+                    mRawSession = false;
+                    mClientOutput = mClient.getOutputStream();
+
+                    mFeedback = new RateFeedback(mClientOutput, mInjector);
+                    mFeedback.start();
 
                     while (mRunning && !Thread.currentThread().isInterrupted() && scanner.hasNext()) {
                         String msg = scanner.next();
-                        handleCommand(msg);
+
+                        // A malformed value must not terminate the connection
+                        try {
+                            handleCommand(msg);
+                        } catch (NumberFormatException e) {
+                            Log.d(TAG, "Invalid command: " + msg);
+                        }
                     }
                 } finally {
+                    setJitterBuffer(false);
+
+                    if(mFeedback != null) {
+                        mFeedback.stop();
+                        mFeedback = null;
+                    }
+
                     try {
                         mClient.close();
                         mClient = null;
+                        mClientOutput = null;
                     } catch (Exception e) {
                         e.printStackTrace();
                     }
 
-                    mInputHandler.reset();
+                    onClientDisconnected();
                 }
             } catch (IOException e) {
                 e.printStackTrace();
             }
         }
 
+        LowLatencyMode.unregister(sched);
         stopForeground(true /* remove notification */);
         stopSelf();
         mInstance = null;
@@ -189,17 +253,317 @@ public class SocketIME extends Service {
         mThread = null;
     }
 
-    private void handleCommand(String cmd) {
-        Log.d(TAG, "handleCommand: " + cmd);
+    // Starts a session on the first command of a client. A client which identifies itself with the
+    // token of the session it lost within SESSION_GRACE_PERIOD resumes it: the handlers are not
+    // reset, so the pressed sticks stay down, and it only needs to send what changed. Clients which
+    // do not send a HELLO always get a new session. The raw touch clients (HELLO|token|raw) do not
+    // own the game handlers, so they neither reset them nor take over the session kept for resume.
+    private synchronized boolean startSession(String token, boolean raw) {
+        if(raw) {
+            mRawSession = true;
+            sendLine("SESSION|" + token + "|0|0");
+            return false;
+        }
+
+        mHandler.removeCallbacks(mSessionExpired);
+
+        boolean resumed = mResumePending && (token != null) && token.equals(mSessionToken);
+        long outage = SystemClock.uptimeMillis() - mDisconnectedAt;
+
+        mResumePending = false;
+        mSessionToken = token;
+
+        if(resumed) {
+            mNumResumed++;
+            Log.d(TAG, "Session resumed after " + outage + " ms (" + mNumResumed + " resumes)");
+        } else {
+            resetHandlers();
+            mClockSync.reset();
+        }
+
+        if(token != null)
+            sendLine("SESSION|" + token + "|" + (resumed ? 1 : 0) + "|" + (resumed ? outage : 0));
+
+        return resumed;
+    }
+
+    private synchronized void onClientDisconnected() {
+        endFrame();
+
+        // The queued gestures are played, only the pointers left pressed are released
+        if(mRawSession) {
+            releaseRawTouches();
+            return;
+        }
+
+        if(mSessionToken == null) {
+            resetHandlers();
+            return;
+        }
+
+        Log.d(TAG, "Keeping session " + mSessionToken + " for " + SESSION_GRACE_PERIOD + " ms");
+        mResumePending = true;
+        mDisconnectedAt = SystemClock.uptimeMillis();
+        mHandler.postDelayed(mSessionExpired, SESSION_GRACE_PERIOD);
+    }
+
+    // Runs on the main thread
+    private final Runnable mSessionExpired = () -> {
+        synchronized (SocketIME.this) {
+            if(!mResumePending)
+                return; // resumed in the meanwhile
+
+            Log.d(TAG, "Session " + mSessionToken + " expired");
+            mResumePending = false;
+            mSessionToken = null;
+            resetHandlers();
+        }
+    };
+
+    // Called with the lock held after each stick sample
+    private void scheduleSettle() {
+        mLastStickSample = SystemClock.uptimeMillis();
+
+        if(!mSettlePending) {
+            mSettlePending = true;
+            mHandler.postDelayed(mSettleSticks, IInputHandler.STICK_SETTLE_DELAY);
+        }
+    }
+
+    private final Runnable mSettleSticks = this::settleSticks;
+
+    // Runs on the main thread, STICK_SETTLE_DELAY after the last stick sample
+    private synchronized void settleSticks() {
+        long wait = mLastStickSample + IInputHandler.STICK_SETTLE_DELAY - SystemClock.uptimeMillis();
+
+        if(wait > 0) {
+            mHandler.postDelayed(mSettleSticks, wait);
+            return;
+        }
+
+        mSettlePending = false;
+
+        for(IInputHandler handler: mHandlers.values())
+            handler.settleSticks();
+    }
+
+    private void sendLine(String line) {
+        sendLine(mClientOutput, line);
+    }
+
+    private void sendLine(OutputStream output, String line) {
+        if(output == null)
+            return;
+
+        // NOTE: RateFeedback writes on the same stream
+        synchronized (output) {
+            try {
+                output.write((line + "\n").getBytes());
+                output.flush();
+            } catch (IOException e) {
+                Log.d(TAG, "Write failed: " + e.getMessage());
+            }
+        }
+    }
+
+    // Resets the handlers of all the displays and targets the default one
+    private synchronized void resetHandlers() {
+        endFrame();
+
+        for(IInputHandler handler: mHandlers.values())
+            handler.reset();
+
+        releaseRawTouches();
+
+        mInputHandler = mHandlers.get(InputInjector.DEFAULT_DISPLAY);
+        mInjector = InputInjector.getInstance();
+        mDisplayId = InputInjector.DEFAULT_DISPLAY;
+
+        if(mFeedback != null)
+            mFeedback.setInjector(mInjector);
+    }
+
+    private synchronized void releaseRawTouches() {
+        for(RawTouchHandler raw: mRawHandlers.values())
+            raw.releaseAll();
+    }
+
+    // Targets the next commands to the given display, each display has its own injector
+    private void selectDisplay(int displayId) {
+        IInputHandler handler = mHandlers.get(displayId);
+
+        // A frame is bound to the injector of its display
+        endFrame();
+
+        if(handler == null) {
+            Log.d(TAG, "Starting injector for display " + displayId);
+            handler = new InputHandlerBS(InputInjector.start(displayId));
+            handler.setResponseCurve(true, mLeftCurve);
+            handler.setResponseCurve(false, mRightCurve);
+            mHandlers.put(displayId, handler);
+        }
+
+        mInputHandler = handler;
+        mInjector = InputInjector.getInstance(displayId);
+        mDisplayId = displayId;
 
+        // Report the queue of the targeted display
+        if(mFeedback != null)
+            mFeedback.setInjector(mInjector);
+    }
+
+    // Raw touches in screen coordinates, for the scripted automation, see RawTouchHandler:
+    //   T_DOWN|id|x|y, T_MOVE|id|x|y, T_UP|id
+    //   T_TAP|id|x|y|duration_ms
+    //   T_SWIPE|id|x1|y1|x2|y2|duration_ms
+    //   T_SYNC|n, replied with T_SYNC|n once the previous gestures have been played
+    // The moves of several pointers within a frame are injected together.
+    private boolean dispatchRawTouch(String ev, String[] parts) {
+        RawTouchHandler raw = mRawHandlers.get(mDisplayId);
+
+        if(raw == null) {
+            raw = new RawTouchHandler(mInjector);
+            mRawHandlers.put(mDisplayId, raw);
+        }
+
+        int n = parts.length;
+
+        if((n == 4) && ev.equals("T_DOWN"))
+            raw.down(Integer.parseInt(parts[1]), Float.parseFloat(parts[2]), Float.parseFloat(parts[3]));
+        else if((n == 4) && ev.equals("T_MOVE"))
+            raw.move(Integer.parseInt(parts[1]), Float.parseFloat(parts[2]), Float.parseFloat(parts[3]));
+        else if((n == 2) && ev.equals("T_UP"))
+            raw.up(Integer.parseInt(parts[1]));
+        else if((n == 5) && ev.equals("T_TAP"))
+            raw.tap(Integer.parseInt(parts[1]), Float.parseFloat(parts[2]), Float.parseFloat(parts[3]),
+                    Long.parseLong(parts[4]));
+        else if((n == 7) && ev.equals("T_SWIPE"))
+            raw.swipe(Integer.parseInt(parts[1]), Float.parseFloat(parts[2]), Float.parseFloat(parts[3]),
+                    Float.parseFloat(parts[4]), Float.parseFloat(parts[5]), Long.parseLong(parts[6]));
+        else if((n == 2) && ev.equals("T_SYNC")) {
+            // Replied to the client which asked, even if it disconnects meanwhile
+            OutputStream output = mClientOutput;
+            String reply = "T_SYNC|" + Long.parseLong(parts[1]);
+            raw.sync(() -> sendLine(output, reply));
+        }
+        else
+            return false;
+
+        return true;
+    }
+
+    // Ends the frame started by the client, if any, e.g. when it disconnects within the frame
+    private synchronized void endFrame() {
+        if(!mInFrame)
+            return;
+
+        mInjector.endFrame();
+        mInFrame = false;
+    }
+
+    // When enabled, the timestamped keys and sticks commands are played out by a JitterBuffer
+    private void setJitterBuffer(boolean enabled) {
+        if(enabled && (mJitterBuffer == null)) {
+            // The frames are suspended while the buffer is active
+            endFrame();
+
+            mJitterBuffer = new JitterBuffer(this::onPlayout);
+            mJitterBuffer.start();
+
+            if(mFeedback != null)
+                mFeedback.setJitterBuffer(mJitterBuffer);
+        } else if(!enabled && (mJitterBuffer != null)) {
+            if(mFeedback != null)
+                mFeedback.setJitterBuffer(null);
+
+            // NOTE: must not hold the lock, as the playout thread drains into onPlayout
+            mJitterBuffer.stop();
+            mJitterBuffer = null;
+        }
+    }
+
+    // Called by the JitterBuffer thread
+    private synchronized void onPlayout(JitterBuffer.Command cmd) {
+        IInputHandler handler = mHandlers.get(cmd.mDisplayId);
+        InputInjector injector = InputInjector.getInstance(cmd.mDisplayId);
+
+        if((handler == null) || (injector == null))
+            return;
+
+        injector.setEventTime(cmd.mEventTime);
+        AllocStats.HANDLER.begin();
+
+        if(cmd.mType == JitterBuffer.TYPE_KEY)
+            handler.onKey(cmd.mKey, cmd.mPressed);
+        else {
+            handler.onStickMove(cmd.mIsLeft, cmd.mX, cmd.mY);
+            scheduleSettle();
+        }
+
+        AllocStats.HANDLER.end();
+        injector.setEventTime(0);
+    }
+
+    // Applies the optional host timestamp (us) of a command to the events it generates
+    private void setEventTime(String[] parts, int idx) {
+        long eventTime = 0;
+
+        if(parts.length > idx)
+            eventTime = mClockSync.onRemoteTime(Long.parseLong(parts[idx]));
+
+        mInjector.setEventTime(eventTime);
+    }
+
+    private void handleCommand(String cmd) {
+        AllocStats.PARSE.begin();
         String[] parts = cmd.split("\\|");
 
+        // The gyro samples and the raw touches rate is too high to log them
+        if(!parts[0].equals("GYRO") && !parts[0].startsWith("T_"))
+            Log.d(TAG, "handleCommand: " + cmd);
+
+        if(!mSessionStarted) {
+            boolean isHello = ((parts.length == 2) || (parts.length == 3)) && parts[0].equals("HELLO");
+            boolean isRaw = isHello && (parts.length == 3) && parts[2].equals("raw");
+
+            mSessionStarted = true;
+            startSession(isHello ? parts[1] : null, isRaw);
+
+            if(isHello)
+                return;
+        }
+
+        // Handled without the lock, see setJitterBuffer
+        if((parts.length == 2) && parts[0].equals("JITTER")) {
+            setJitterBuffer(Integer.parseInt(parts[1]) != 0);
+            return;
+        }
+
+        // LOW_LATENCY|1/0, also logs the threads wake up delays of the previous mode
+        if((parts.length == 2) && parts[0].equals("LOW_LATENCY")) {
+            LowLatencyMode.setEnabled(Integer.parseInt(parts[1]) != 0, line -> Log.d(TAG, "LowLatency " + line));
+            return;
+        }
+
+        if((parts.length == 2) && parts[0].equals("ALLOC_STATS")) {
+            if(Integer.parseInt(parts[1]) != 0)
+                AllocStats.start(ALLOC_STATS_INTERVAL, line -> Log.d(TAG, "AllocStats " + line));
+            else
+                AllocStats.stop();
+            return;
+        }
+
+        dispatchCommand(cmd, parts);
+    }
+
+    private synchronized void dispatchCommand(String cmd, String[] parts) {
         if(parts.length < 1)
             return;
 
         String ev = parts[0];
 
-        if((parts.length == 2) && (ev.equals("K_DOWN") || ev.equals("K_UP"))) {
+        // The last field of the keys and sticks commands is an optional timestamp
+        if(((parts.length == 2) || (parts.length == 3)) && (ev.equals("K_DOWN") || ev.equals("K_UP"))) {
             boolean pressed = ev.equals("K_DOWN");
             int val = Integer.parseInt(parts[1]);
 
@@ -207,15 +571,106 @@ public class SocketIME extends Service {
                 GamepadKey key = GamepadKey.values()[val];
                 Log.d(TAG, "onKey[" + (pressed ? "PRESS" : "RELEASE") + "] " + key.name());
 
-                if(key != GamepadKey.K_UNKNOWN)
+                if(key == GamepadKey.K_UNKNOWN)
+                    return;
+
+                AllocStats.PARSE.end();
+
+                if((mJitterBuffer != null) && (parts.length == 3))
+                    mJitterBuffer.pushKey(mDisplayId, key, pressed,
+                            mClockSync.onRemoteTime(Long.parseLong(parts[2])));
+                else {
+                    setEventTime(parts, 2);
+                    AllocStats.HANDLER.begin();
                     mInputHandler.onKey(key, pressed);
+                    AllocStats.HANDLER.end();
+                    mInjector.setEventTime(0);
+                }
             }
-        } else if((parts.length == 3) && (ev.equals("R_STICK") || ev.equals("L_STICK"))) {
+        } else if(((parts.length == 3) || (parts.length == 4)) && (ev.equals("R_STICK") || ev.equals("L_STICK"))) {
             boolean isLeft = ev.equals("L_STICK");
             float x = Float.parseFloat(parts[1]);
             float y = Float.parseFloat(parts[2]);
 
-            mInputHandler.onStickMove(isLeft, x, y);
+            AllocStats.PARSE.end();
+
+            if(mFeedback != null)
+                mFeedback.onStickSample();
+
+            if((mJitterBuffer != null) && (parts.length == 4))
+                mJitterBuffer.pushStick(mDisplayId, isLeft, x, y,
+                        mClockSync.onRemoteTime(Long.parseLong(parts[3])));
+            else {
+                setEventTime(parts, 3);
+                AllocStats.HANDLER.begin();
+                mInputHandler.onStickMove(isLeft, x, y);
+                AllocStats.HANDLER.end();
+                mInjector.setEventTime(0);
+                scheduleSettle();
+            }
+        } else if(((parts.length == 4) || (parts.length == 5)) && ev.equals("GYRO")) {
+            // Angular velocity in rad/s, not buffered as it only refines the right stick aim
+            float gx = Float.parseFloat(parts[1]);
+            float gy = Float.parseFloat(parts[2]);
+            float gz = Float.parseFloat(parts[3]);
+            long timeNanos = (parts.length == 5) ? Long.parseLong(parts[4]) * 1000 : System.nanoTime();
+
+            AllocStats.PARSE.end();
+            AllocStats.HANDLER.begin();
+            mInputHandler.onGyro(timeNanos, gx, gy, gz);
+            AllocStats.HANDLER.end();
+        } else if((parts.length == 1) && ev.equals("FRAME_START")) {
+            // The changes until FRAME_END are injected together, e.g. both the sticks of a host
+            // tick in a single MOVE. Ignored with the jitter buffer, as the buffered commands are
+            // played out later, individually, and a frame would defer them until its end.
+            if(!mInFrame && (mJitterBuffer == null)) {
+                mInjector.beginFrame();
+                mInFrame = true;
+            }
+        } else if((parts.length == 1) && ev.equals("FRAME_END")) {
+            endFrame();
+        } else if(((parts.length == 2) || (parts.length == 3)) && ev.equals("CURVE")) {
+            // CURVE|L/R|spec, see ResponseCurve. No spec restores the linear response.
+            boolean isLeft = parts[1].equals("L");
+
+            try {
+                ResponseCurve curve = (parts.length == 3) ? ResponseCurve.parse(parts[2]) : null;
+                Log.d(TAG, (isLeft ? "Left" : "Right") + " stick curve: " + curve);
+
+                if(isLeft)
+                    mLeftCurve = curve;
+                else
+                    mRightCurve = curve;
+
+                for(IInputHandler handler: mHandlers.values())
+                    handler.setResponseCurve(isLeft, curve);
+            } catch (IllegalArgumentException e) {
+                Log.w(TAG, e.getMessage());
+            }
+        } else if((parts.length == 3) && ev.equals("TURBO")) {
+            // TURBO|key|rate_hz, a rate of 0 unbinds the key
+            int val = Integer.parseInt(parts[1]);
+            float rate = Float.parseFloat(parts[2]);
+
+            if((val > 0) && (val < GamepadKey.values().length)) {
+                GamepadKey key = GamepadKey.values()[val];
+                Log.d(TAG, "Turbo " + key.name() + ": " + rate + " Hz");
+                mInputHandler.setTurbo(key, rate);
+            }
+        } else if(ev.startsWith("T_")) {
+            AllocStats.PARSE.end();
+
+            try {
+                if(!dispatchRawTouch(ev, parts))
+                    Log.d(TAG, "Invalid command: " + cmd);
+            } catch (NumberFormatException e) {
+                Log.d(TAG, "Invalid command: " + cmd);
+            }
+        } else if((parts.length == 2) && ev.equals("DISPLAY")) {
+            int displayId = Integer.parseInt(parts[1]);
+
+            if(displayId >= 0)
+                selectDisplay(displayId);
         } else {
             Log.d(TAG, "Invalid command: " + cmd);
         }
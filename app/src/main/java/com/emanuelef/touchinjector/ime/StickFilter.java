@@ -0,0 +1,35 @@
+/*
+ * This file is part of TouchInjector.
+ *
+ * TouchInjector is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * TouchInjector is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with TouchInjector.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ * Copyright 2021 - Emanuele Faranda
+ */
+
+package com.emanuelef.touchinjector.ime;
+
+// A stage of a StickFilterChain. Filters must not allocate, as they run for each stick sample.
+public interface StickFilter {
+    // Filters in place the sample (xy[0], xy[1]), in the [-1, 1] range.
+    // Returns false if the sample is redundant and must be suppressed.
+    boolean filter(long when, float[] xy);
+
+    // False if the output still lags behind the last input, which must then be filtered again
+    // once the stick stops sending samples
+    boolean isSettled();
+
+    void reset();
+
+    String getName();
+}
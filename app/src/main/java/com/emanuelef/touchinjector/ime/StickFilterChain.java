@@ -0,0 +1,91 @@
+/*
+ * This file is part of TouchInjector.
+ *
+ * TouchInjector is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * TouchInjector is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with TouchInjector.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ * Copyright 2021 - Emanuele Faranda
+ */
+
+package com.emanuelef.touchinjector.ime;
+
+import android.util.Log;
+
+// Runs the stick samples through a sequence of StickFilter and counts the samples suppressed by
+// each stage.
+public class StickFilterChain {
+    private static final String TAG = "StickFilterChain";
+    private final StickFilter[] mFilters;
+    private final long[] mSuppressed;
+    private final float[] mLastInput = new float[2];
+    private long mNumSamples;
+
+    public StickFilterChain(StickFilter... filters) {
+        mFilters = filters;
+        mSuppressed = new long[filters.length];
+    }
+
+    // Filters in place the sample (xy[0], xy[1]). Returns false if it must be suppressed.
+    public boolean apply(long when, float[] xy) {
+        mNumSamples++;
+        mLastInput[0] = xy[0];
+        mLastInput[1] = xy[1];
+
+        for(int i = 0; i < mFilters.length; i++) {
+            if(!mFilters[i].filter(when, xy)) {
+                mSuppressed[i]++;
+                return false;
+            }
+        }
+
+        return true;
+    }
+
+    public boolean isSettled() {
+        for(StickFilter filter: mFilters) {
+            if(!filter.isSettled())
+                return false;
+        }
+
+        return true;
+    }
+
+    // The last sample passed to apply, before the filtering
+    public void getLastInput(float[] xy) {
+        xy[0] = mLastInput[0];
+        xy[1] = mLastInput[1];
+    }
+
+    public void reset() {
+        for(StickFilter filter: mFilters)
+            filter.reset();
+    }
+
+    public long getNumSamples() {
+        return mNumSamples;
+    }
+
+    public long getSuppressed(int stage) {
+        return mSuppressed[stage];
+    }
+
+    public void logStats(String name) {
+        StringBuilder sb = new StringBuilder();
+        sb.append(name).append(": ").append(mNumSamples).append(" samples");
+
+        for(int i = 0; i < mFilters.length; i++)
+            sb.append(", ").append(mFilters[i].getName()).append(" suppressed ").append(mSuppressed[i]);
+
+        Log.d(TAG, sb.toString());
+    }
+}
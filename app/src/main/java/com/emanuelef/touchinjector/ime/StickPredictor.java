@@ -0,0 +1,126 @@
+/*
+ * This file is part of TouchInjector.
+ *
+ * TouchInjector is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * TouchInjector is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with TouchInjector.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ * Copyright 2021 - Emanuele Faranda
+ */
+
+package com.emanuelef.touchinjector.ime;
+
+import android.graphics.PointF;
+
+// Extrapolates the stick position forward in time to compensate the latency of the
+// host-to-screen pipeline. The stick velocity is estimated with a least squares fit
+// on the most recent samples, which are kept in a fixed size ring buffer.
+public class StickPredictor {
+    private static final int MAX_SAMPLES = 8;
+    private static final long MAX_SAMPLE_AGE = 60; // ms, older samples do not describe the current motion
+    private final long[] mTimes;
+    private final float[] mXs;
+    private final float[] mYs;
+    private int mHead;
+    private int mCount;
+    private long mLatency;
+
+    public StickPredictor(long latencyMillis) {
+        mTimes = new long[MAX_SAMPLES];
+        mXs = new float[MAX_SAMPLES];
+        mYs = new float[MAX_SAMPLES];
+        mLatency = latencyMillis;
+        reset();
+    }
+
+    public void setLatency(long millis) {
+        mLatency = millis;
+    }
+
+    public long getLatency() {
+        return mLatency;
+    }
+
+    public void reset() {
+        mHead = 0;
+        mCount = 0;
+    }
+
+    public void addSample(long when, float x, float y) {
+        mTimes[mHead] = when;
+        mXs[mHead] = x;
+        mYs[mHead] = y;
+        mHead = (mHead + 1) % MAX_SAMPLES;
+
+        if(mCount < MAX_SAMPLES)
+            mCount++;
+    }
+
+    // Stores into out the predicted position, in the [-1, 1] range, mLatency ms after the last sample.
+    // Returns false if there are no samples.
+    public boolean predict(PointF out) {
+        if(mCount == 0)
+            return false;
+
+        int last = (mHead + MAX_SAMPLES - 1) % MAX_SAMPLES;
+        long lastTime = mTimes[last];
+        float lastX = mXs[last];
+        float lastY = mYs[last];
+        out.set(lastX, lastY);
+
+        if((mCount < 2) || (mLatency <= 0))
+            return true;
+
+        // Least squares slope, with times relative to the last sample to keep the sums small
+        float sumT = 0, sumX = 0, sumY = 0;
+        float sumTT = 0, sumTX = 0, sumTY = 0;
+        int n = 0;
+
+        for(int i = 0; i < mCount; i++) {
+            int idx = (last + MAX_SAMPLES - i) % MAX_SAMPLES;
+            long age = lastTime - mTimes[idx];
+
+            if(age > MAX_SAMPLE_AGE)
+                break;
+
+            float t = -age;
+            sumT += t;
+            sumX += mXs[idx];
+            sumY += mYs[idx];
+            sumTT += t * t;
+            sumTX += t * mXs[idx];
+            sumTY += t * mYs[idx];
+            n++;
+        }
+
+        float den = n * sumTT - sumT * sumT;
+
+        if((n < 2) || (den == 0))
+            return true;
+
+        float vx = (n * sumTX - sumT * sumX) / den;
+        float vy = (n * sumTY - sumT * sumY) / den;
+        float x = lastX + vx * mLatency;
+        float y = lastY + vy * mLatency;
+
+        // Keep the prediction inside the stick range
+        float hypot = (float) Math.hypot(x, y);
+
+        if(hypot > 1) {
+            x /= hypot;
+            y /= hypot;
+        }
+
+        out.set(x, y);
+        return true;
+    }
+}
@@ -0,0 +1,57 @@
+/*
+ * This file is part of TouchInjector.
+ *
+ * TouchInjector is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * TouchInjector is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with TouchInjector.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ * Copyright 2021 - Emanuele Faranda
+ */
+
+package com.emanuelef.touchinjector.ime;
+
+import android.accessibilityservice.AccessibilityService;
+import android.content.Intent;
+import android.util.Log;
+import android.view.accessibility.AccessibilityEvent;
+
+// Provides the dispatchGesture API to the GestureBackend. It must be enabled by the user from the
+// device Accessibility settings, see docs/inject_touch_events.md for its limitations.
+public class TouchAccessibilityService extends AccessibilityService {
+    private static final String TAG = "TouchAccessibility";
+    private static TouchAccessibilityService mInstance = null;
+
+    @Override
+    protected void onServiceConnected() {
+        Log.d(TAG, "onServiceConnected");
+        super.onServiceConnected();
+        mInstance = this;
+    }
+
+    @Override
+    public boolean onUnbind(Intent intent) {
+        Log.d(TAG, "onUnbind");
+        mInstance = null;
+        return super.onUnbind(intent);
+    }
+
+    @Override
+    public void onAccessibilityEvent(AccessibilityEvent event) {}
+
+    @Override
+    public void onInterrupt() {}
+
+    // null if the service is not enabled
+    public static TouchAccessibilityService getInstance() {
+        return mInstance;
+    }
+}
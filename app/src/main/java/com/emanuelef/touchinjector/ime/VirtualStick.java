@@ -20,6 +20,7 @@
 package com.emanuelef.touchinjector.ime;
 
 import android.graphics.PointF;
+import android.os.SystemClock;
 import android.util.Log;
 
 public class VirtualStick {
@@ -27,66 +28,157 @@ public class VirtualStick {
     private static final double mPi2 = Math.PI / 2;
     private boolean mPressed;
     private final PointF mLastPos;
+    private final PointF mLastScreen;
+    private final PointF mPredicted;
+    private final PointF mScreenPos;
     private final PointF mCenter;
     private final int mRadius;
     private final int mPointer;
     private final boolean mRoundedStick;
     private final InputInjector mInjector;
+    private StickPredictor mPredictor;
+    private boolean mPredicting;
+    private ResponseCurve mCurve;
+    private int mMinScreenDelta;
+    private long mNumSuppressed;
 
     public VirtualStick(int pointer, float cx, float cy, int radius) {
+        this(InputInjector.getInstance(), pointer, cx, cy, radius);
+    }
+
+    public VirtualStick(InputInjector injector, int pointer, float cx, float cy, int radius) {
         mRadius = radius;
         mCenter = new PointF(cx, cy);
         mRoundedStick = true;
         mLastPos = new PointF();
-        mInjector = InputInjector.getInstance();
+        mLastScreen = new PointF();
+        mPredicted = new PointF();
+        mScreenPos = new PointF();
+        mInjector = injector;
         mPointer = pointer;
         mPressed = false;
+        mMinScreenDelta = 1;
+    }
+
+    // Moves smaller than delta pixels on both the axes are suppressed. The default of 1 only
+    // suppresses the moves which do not change the on-screen coordinates.
+    public void setMinScreenDelta(int delta) {
+        mMinScreenDelta = Math.max(delta, 1);
+    }
+
+    // Number of moves suppressed due to setMinScreenDelta
+    public long getNumSuppressed() {
+        return mNumSuppressed;
+    }
+
+    // Enables the latency compensation. Pass null to disable it.
+    public void setPredictor(StickPredictor predictor) {
+        mPredictor = predictor;
+    }
+
+    public StickPredictor getPredictor() {
+        return mPredictor;
+    }
+
+    // Shapes the deflection of the stick. Pass null for the linear response.
+    public void setResponseCurve(ResponseCurve curve) {
+        mCurve = curve;
     }
 
     // converts joystick coordinates in range [-1, 1] to on-screen coordinates
-    private PointF convertCoords(float vx, float vy) {
-        PointF toPos;
+    private void convertCoords(float vx, float vy, PointF out) {
+        if(mCurve != null) {
+            float hypot = (float) Math.hypot(vx, vy);
+
+            if(hypot > 0) {
+                float scale = mCurve.apply(hypot) / hypot;
+                vx *= scale;
+                vy *= scale;
+            }
+        }
 
         if(mRoundedStick) {
             double angle = Math.atan2(vy, vx) + mPi2;
             double hypot = Math.hypot(vx, vy);
             float x = mCenter.x + (int)(Math.sin(angle) * mRadius * hypot);
             float y = mCenter.y + (int)(Math.cos(angle) * mRadius * hypot);
-            toPos = new PointF(x, y);
+            out.set(x, y);
         } else {
             int x = (int)(mCenter.x - mRadius + (vx + 1) * mRadius);
             int y = (int)(mCenter.y - mRadius + (vy + 1) * mRadius);
-            toPos = new PointF(x, y);
+            out.set(x, y);
         }
+    }
 
-        return toPos;
+    // Feeds an intermediate sample to the predictor, without moving the stick
+    public void addSample(long when, float vx, float vy) {
+        if(mPressed && (mPredictor != null))
+            mPredictor.addSample(when, vx, vy);
     }
 
     public void moveTo(PointF vPos, long delay) {
-        PointF toPos = convertCoords(vPos.x, vPos.y);
+        moveTo(vPos.x, vPos.y, delay, SystemClock.uptimeMillis());
+    }
+
+    // Moves to a stick sample taken by the source at the given time (uptimeMillis timebase)
+    public void moveToSample(long when, PointF vPos) {
+        moveTo(vPos.x, vPos.y, 0, when);
+    }
 
+    // Drops the prediction once the samples stop, so that the stick rests at the last position
+    public void settle() {
+        if(mPressed && mPredicting)
+            moveTo(mLastPos.x, mLastPos.y, 0, 0);
+    }
+
+    // when: the time of the sample fed to the predictor, 0 to not predict
+    private void moveTo(float vx, float vy, long delay, long when) {
         if(!mPressed) {
             Log.d(TAG, mPointer + " touchDown: " + mCenter);
             mInjector.touchDown(mPointer, mCenter);
             mLastPos.set(0, 0);
+            mLastScreen.set(mCenter.x, mCenter.y);
             mPressed = true;
-            delay += 10;
+            delay += Delays.downToMove;
         }
 
-        if(vPos.equals(mLastPos))
+        mLastPos.set(vx, vy);
+
+        mPredicting = false;
+
+        if((when > 0) && (mPredictor != null)) {
+            mPredictor.addSample(when, vx, vy);
+
+            if(mPredictor.predict(mPredicted)) {
+                mPredicting = (mPredicted.x != vx) || (mPredicted.y != vy);
+                vx = mPredicted.x;
+                vy = mPredicted.y;
+            }
+        } else if(mPredictor != null)
+            mPredictor.reset();
+
+        convertCoords(vx, vy, mScreenPos);
+
+        // The stick center is always reached exactly
+        int minDelta = ((vx == 0) && (vy == 0)) ? 1 : mMinScreenDelta;
+
+        if((Math.abs(mScreenPos.x - mLastScreen.x) < minDelta) &&
+                (Math.abs(mScreenPos.y - mLastScreen.y) < minDelta)) {
+            mNumSuppressed++;
             return;
+        }
 
-        Log.d(TAG, mPointer + " moveTo: " + toPos);
+        //Log.d(TAG, mPointer + " moveTo: " + mScreenPos);
 
         if(delay > 0)
             mInjector.addDelay(delay);
 
-        mInjector.touchMove(mPointer, toPos);
-        mLastPos.set(vPos.x, vPos.y);
+        mInjector.touchMove(mPointer, mScreenPos);
+        mLastScreen.set(mScreenPos.x, mScreenPos.y);
     }
 
     public void moveToCenter(long delay) {
-        moveTo(new PointF(0, 0), delay);
+        moveTo(0, 0, delay, 0);
     }
 
     public void release() {
@@ -97,6 +189,17 @@ public class VirtualStick {
 
         mInjector.touchUp(mPointer);
         mPressed = false;
+
+        if(mPredictor != null)
+            mPredictor.reset();
+    }
+
+    // Forgets the pointer, which was already released by InputInjector.cancel
+    public void cancel() {
+        mPressed = false;
+
+        if(mPredictor != null)
+            mPredictor.reset();
     }
 
     public void press() {
@@ -104,12 +207,15 @@ public class VirtualStick {
 
         if(!mPressed) {
             mInjector.touchDown(mPointer, mCenter);
-            mInjector.addDelay(10);
+            mInjector.addDelay(Delays.downToMove);
         }
 
         mInjector.touchUp(mPointer);
         mLastPos.set(0, 0);
         mPressed = false;
+
+        if(mPredictor != null)
+            mPredictor.reset();
     }
 
     public boolean isPressed() {
@@ -119,4 +225,8 @@ public class VirtualStick {
     public PointF getPosition() {
         return mLastPos;
     }
+
+    public PointF getCenter() {
+        return mCenter;
+    }
 }
@@ -0,0 +1,513 @@
+/*
+ * This file is part of TouchInjector.
+ *
+ * TouchInjector is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * TouchInjector is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with TouchInjector.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ * Copyright 2021 - Emanuele Faranda
+ */
+
+package com.emanuelef.touchinjector.host;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.StandardSocketOptions;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.SocketChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayDeque;
+import java.util.BitSet;
+import java.util.UUID;
+import java.util.concurrent.atomic.AtomicInteger;
+
+// The connection to the SocketIME service. Commands are encoded as ASCII lines into a reusable
+// buffer and sent with a single write. The feedback sent back by the app (see RateFeedback.java)
+// is read by a dedicated thread.
+//
+// All the methods but tryConnect, send and close must be called with the same lock held, which
+// guards the buffers. take hands the buffered commands over to the flusher thread, which alone
+// connects and writes them (see send) without that lock: a slow connect or write does not block
+// the threads which fill the buffer.
+public class Connection {
+    private static final long CONNECT_RETRY_INTERVAL = 3000; // ms
+    private static final int BUFFER_SIZE = 4096;
+    private static final int NUM_BATCHES = 4;
+    private static final int MIN_REMAINING = 256; // bytes, more than any command
+
+    // The state of the session after the HELLO, see SocketIME.startSession
+    private static final int SESSION_NONE = 0;
+    private static final int SESSION_WAIT = 1;
+    private static final int SESSION_RESET = 2;
+    private static final int SESSION_RESUMED = 3;
+
+    private final String mHost;
+    private final int mPort;
+    private final boolean mDryRun;
+    private ByteBuffer mOut;
+
+    // Only changed by the flusher thread
+    private volatile WritableByteChannel mChannel;
+    private Thread mFeedbackThread;
+    private volatile long mRetryAt;
+    private volatile int mMaxRate;
+    private boolean mJitterBuffer;
+    private String mLeftCurve;
+    private String mRightCurve;
+    private boolean mLowLatency;
+    private final String mSessionToken = UUID.randomUUID().toString().replace("-", "");
+    private final AtomicInteger mSession = new AtomicInteger(SESSION_NONE);
+
+    // The commands taken, waiting for the flusher, and the free buffers
+    private final ArrayDeque<Batch> mTaken = new ArrayDeque<>();
+    private final ArrayDeque<Batch> mFree = new ArrayDeque<>();
+
+    // The keys state, to send it again when the transitions are lost due to a disconnection.
+    // The keys with transitions sent after the HELLO are already up to date in the app.
+    private final BitSet mPressed = new BitSet();
+    private final BitSet mLostKeys = new BitSet();
+    private final BitSet mTouched = new BitSet();
+
+    // Commands handed over to the flusher
+    public static class Batch {
+        private ByteBuffer mBuf;
+        private int mWritten;
+
+        private Batch() {
+            mBuf = ByteBuffer.allocateDirect(BUFFER_SIZE);
+        }
+    }
+
+    // dryRun: write the commands to stdout instead of connecting to the app
+    public Connection(String host, int port, boolean dryRun) {
+        mHost = host;
+        mPort = port;
+        mDryRun = dryRun;
+        mOut = ByteBuffer.allocateDirect(BUFFER_SIZE);
+
+        for(int i = 0; i < NUM_BATCHES; i++)
+            mFree.add(new Batch());
+    }
+
+    // The max sticks rate (Hz) advertised by the app, 0 if unknown
+    public int getMaxRate() {
+        return mMaxRate;
+    }
+
+    // Enables the app jitter buffer on each connection
+    public void setJitterBuffer(boolean enabled) {
+        mJitterBuffer = enabled;
+    }
+
+    // The sticks response curves applied by the app on each connection, see ResponseCurve.java.
+    // null keeps the app curve.
+    public void setResponseCurves(String left, String right) {
+        mLeftCurve = left;
+        mRightCurve = right;
+    }
+
+    // Raises the priority of the app input threads on each connection
+    public void setLowLatency(boolean enabled) {
+        mLowLatency = enabled;
+    }
+
+    public boolean isConnected() {
+        return(mChannel != null);
+    }
+
+    // True if disconnected and the retry interval has elapsed
+    public boolean canConnect() {
+        return (mChannel == null) && (System.currentTimeMillis() >= mRetryAt);
+    }
+
+    // Only called by the flusher thread, or before starting it. Returns true if connected, then
+    // startSession must be called.
+    public boolean tryConnect() {
+        if((mChannel != null) || (System.currentTimeMillis() < mRetryAt))
+            return false;
+
+        if(mDryRun) {
+            mChannel = Channels.newChannel(System.out);
+            onConnected();
+            return true;
+        }
+
+        try {
+            SocketChannel sock = SocketChannel.open();
+            sock.setOption(StandardSocketOptions.TCP_NODELAY, true);
+            sock.connect(new InetSocketAddress(mHost, mPort));
+            mChannel = sock;
+            mMaxRate = 0;
+            mSession.set(SESSION_WAIT);
+
+            System.out.println("Connected to server");
+            onConnected();
+
+            mFeedbackThread = new Thread(() -> readFeedback(sock));
+            mFeedbackThread.setDaemon(true);
+            mFeedbackThread.start();
+            return isConnected();
+        } catch (IOException e) {
+            System.out.println(e.getMessage());
+            mRetryAt = System.currentTimeMillis() + CONNECT_RETRY_INTERVAL;
+            return false;
+        }
+    }
+
+    // The commands still to send follow the HELLO
+    public void startSession() {
+        mTouched.clear();
+        collectKeys(mOut, 0, mOut.position(), mTouched, true);
+
+        for(Batch batch: mTaken)
+            collectKeys(batch.mBuf, batch.mBuf.position(), batch.mBuf.limit(), mTouched, true);
+    }
+
+    // True until the app replies to the HELLO, the lost keys must not be sent before
+    public boolean isAwaitingSession() {
+        return(mSession.get() == SESSION_WAIT);
+    }
+
+    // Once the app replies to the HELLO, puts the keys to send again: all the held ones if the app
+    // started a new session, since it released its keys, only the lost transitions if it resumed
+    // the session. Returns true, once, if the app started a new session, i.e. its sticks are released.
+    public boolean takeSessionReset() {
+        int session = mSession.get();
+
+        if(((session != SESSION_RESET) && (session != SESSION_RESUMED)) ||
+                !mSession.compareAndSet(session, SESSION_NONE))
+            return false;
+
+        boolean reset = (session == SESSION_RESET);
+        BitSet keys = reset ? mPressed : mLostKeys;
+
+        for(int key = keys.nextSetBit(0); key >= 0; key = keys.nextSetBit(key + 1)) {
+            if(!mTouched.get(key))
+                putKeyState(key, mPressed.get(key));
+        }
+
+        mLostKeys.clear();
+        return reset;
+    }
+
+    // Writes the HELLO, which must precede any other command, and the connection options.
+    // Allocates, but only once per connection.
+    private void onConnected() {
+        StringBuilder sb = new StringBuilder();
+
+        // Resume the session if the app still holds it, see SocketIME.startSession
+        sb.append("HELLO|").append(mSessionToken).append('\n');
+
+        if(mJitterBuffer)
+            sb.append("JITTER|1\n");
+        if(mLeftCurve != null)
+            sb.append("CURVE|L|").append(mLeftCurve).append('\n');
+        if(mRightCurve != null)
+            sb.append("CURVE|R|").append(mRightCurve).append('\n');
+        if(mLowLatency)
+            sb.append("LOW_LATENCY|1\n");
+
+        ByteBuffer buf = ByteBuffer.wrap(sb.toString().getBytes(StandardCharsets.US_ASCII));
+
+        try {
+            while(buf.hasRemaining())
+                mChannel.write(buf);
+        } catch (IOException e) {
+            System.out.println(e.getMessage());
+            close();
+        }
+    }
+
+    private void readFeedback(SocketChannel sock) {
+        ByteBuffer buf = ByteBuffer.allocate(1024);
+        StringBuilder line = new StringBuilder();
+
+        try {
+            while(sock.read(buf) > 0) {
+                buf.flip();
+
+                while(buf.hasRemaining()) {
+                    char c = (char) buf.get();
+
+                    if(c == '\n') {
+                        handleFeedback(line.toString());
+                        line.setLength(0);
+                    } else
+                        line.append(c);
+                }
+
+                buf.clear();
+            }
+        } catch (IOException ignored) {
+            // the connection is closed by the writer
+        }
+    }
+
+    private void handleFeedback(String line) {
+        String[] parts = line.split("\\|");
+
+        if((parts.length == 4) && parts[0].equals("SESSION")) {
+            boolean resumed = parts[2].equals("1");
+
+            if(resumed)
+                System.out.println("Session resumed after " + parts[3] + " ms");
+
+            mSession.compareAndSet(SESSION_WAIT, resumed ? SESSION_RESUMED : SESSION_RESET);
+            return;
+        }
+
+        if((parts.length != 5) || !parts[0].equals("FEEDBACK"))
+            return;
+
+        try {
+            mMaxRate = Integer.parseInt(parts[4]);
+        } catch (NumberFormatException ignored) {}
+    }
+
+    public void close() {
+        WritableByteChannel channel = mChannel;
+
+        if(channel == null)
+            return;
+
+        if(!mDryRun) {
+            try {
+                channel.close();
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+        }
+
+        mChannel = null;
+        mSession.set(SESSION_NONE);
+        mRetryAt = System.currentTimeMillis() + CONNECT_RETRY_INTERVAL;
+    }
+
+    public boolean hasPending() {
+        return(mOut.position() > 0);
+    }
+
+    // True if some keys transitions were not delivered, they are sent again once the session
+    // is established, see takeSessionReset
+    public boolean hasLostKeys() {
+        return !mLostKeys.isEmpty();
+    }
+
+    // Puts the current state of the keys whose transitions were dropped while connected, except
+    // the ones with newer transitions still to be sent
+    public void putLostKeys() {
+        collectKeys(mOut, 0, mOut.position(), mLostKeys, false);
+
+        for(Batch batch: mTaken)
+            collectKeys(batch.mBuf, batch.mBuf.position(), batch.mBuf.limit(), mLostKeys, false);
+
+        for(int key = mLostKeys.nextSetBit(0); key >= 0; key = mLostKeys.nextSetBit(key + 1))
+            putKeyState(key, mPressed.get(key));
+
+        mLostKeys.clear();
+    }
+
+    // Hands the buffered commands over to the flusher, returns false if there are none. If the
+    // flusher is stalled they are kept, unless the buffer is full: then they are dropped.
+    public boolean take() {
+        if(mOut.position() == 0)
+            return false;
+
+        Batch batch = mFree.poll();
+
+        if(batch == null) {
+            if(mOut.remaining() < MIN_REMAINING) {
+                System.out.println("Flusher stalled, dropping the commands");
+                collectKeys(mOut, 0, mOut.position(), mLostKeys, true);
+                mOut.clear();
+            }
+            return false;
+        }
+
+        batch.mBuf.clear();
+        swapBuffer(batch);
+        batch.mBuf.flip();
+        batch.mWritten = 0;
+        mTaken.add(batch);
+        return true;
+    }
+
+    private void swapBuffer(Batch batch) {
+        ByteBuffer buf = mOut;
+        mOut = batch.mBuf;
+        batch.mBuf = buf;
+    }
+
+    public boolean hasTaken() {
+        return !mTaken.isEmpty();
+    }
+
+    // True once all the commands are sent (or lost) and their buffers recycled
+    public boolean isIdle() {
+        return((mFree.size() == NUM_BATCHES) && (mOut.position() == 0));
+    }
+
+    // The next commands to send, null if none
+    public Batch pollTaken() {
+        return mTaken.poll();
+    }
+
+    // Only called by the flusher thread, without the lock. Returns false if the commands could
+    // not be sent, e.g. while disconnected.
+    public boolean send(Batch batch) {
+        WritableByteChannel channel = mChannel;
+        ByteBuffer buf = batch.mBuf;
+
+        try {
+            if(channel != null) {
+                while(buf.hasRemaining())
+                    channel.write(buf);
+            }
+        } catch (IOException e) {
+            System.out.println(e.getMessage());
+            close();
+        }
+
+        batch.mWritten = buf.position();
+        return !buf.hasRemaining();
+    }
+
+    // Gives back the buffer of the commands sent. The keys of the commands not fully written are lost.
+    public void recycle(Batch batch) {
+        ByteBuffer buf = batch.mBuf;
+        int from = batch.mWritten;
+
+        // The partially written command did not reach the app
+        while((from > 0) && (buf.get(from - 1) != '\n'))
+            from--;
+
+        collectKeys(buf, from, buf.limit(), mLostKeys, true);
+        buf.clear();
+        mFree.add(batch);
+    }
+
+    // Sets (or clears) in keys the keys of the K_DOWN/K_UP commands in buf between from and to,
+    // which must be at the start of a line
+    private static void collectKeys(ByteBuffer buf, int from, int to, BitSet keys, boolean set) {
+        int i = from;
+
+        while(i < to) {
+            if((buf.get(i) == 'K') && (i + 1 < to) && (buf.get(i + 1) == '_')) {
+                int j = i + 2;
+
+                while((j < to) && (buf.get(j) != '|') && (buf.get(j) != '\n'))
+                    j++;
+
+                int key = 0;
+                boolean valid = false;
+
+                for(j++; (j < to) && (buf.get(j) >= '0') && (buf.get(j) <= '9'); j++) {
+                    key = key * 10 + (buf.get(j) - '0');
+                    valid = true;
+                }
+
+                if(valid)
+                    keys.set(key, set);
+
+                i = j;
+            }
+
+            // next line
+            while((i < to) && (buf.get(i) != '\n'))
+                i++;
+
+            i++;
+        }
+    }
+
+    // timeMicros: the time of the input sample, used by the app to timestamp the events
+    public void putKey(boolean down, int key, long timeMicros) {
+        mPressed.set(key, down);
+        mTouched.set(key);
+
+        putAscii(down ? "K_DOWN|" : "K_UP|");
+        putInt(key);
+        mOut.put((byte) '|');
+        putLong(timeMicros);
+        mOut.put((byte) '\n');
+    }
+
+    // Without a timestamp, so that the app applies it right away
+    private void putKeyState(int key, boolean down) {
+        mTouched.set(key);
+
+        putAscii(down ? "K_DOWN|" : "K_UP|");
+        putInt(key);
+        mOut.put((byte) '\n');
+    }
+
+    public void putStick(boolean left, float x, float y, long timeMicros) {
+        putAscii(left ? "L_STICK|" : "R_STICK|");
+        putFixed3(x);
+        mOut.put((byte) '|');
+        putFixed3(y);
+        mOut.put((byte) '|');
+        putLong(timeMicros);
+        mOut.put((byte) '\n');
+    }
+
+    // The commands between the start and the end of a frame are applied together by the app
+    public void putFrame(boolean start) {
+        putAscii(start ? "FRAME_START\n" : "FRAME_END\n");
+    }
+
+    private void putAscii(String s) {
+        for(int i = 0; i < s.length(); i++)
+            mOut.put((byte) s.charAt(i));
+    }
+
+    private void putInt(int val) {
+        putLong(val);
+    }
+
+    private void putLong(long val) {
+        if(val < 0) {
+            mOut.put((byte) '-');
+            val = -val;
+        }
+
+        long div = 1;
+
+        while(val / div >= 10)
+            div *= 10;
+
+        while(div > 0) {
+            mOut.put((byte) ('0' + (val / div) % 10));
+            div /= 10;
+        }
+    }
+
+    // Equivalent to "%.3f"
+    private void putFixed3(float val) {
+        int milli = Math.round(val * 1000);
+
+        if(milli < 0) {
+            mOut.put((byte) '-');
+            milli = -milli;
+        }
+
+        putInt(milli / 1000);
+        mOut.put((byte) '.');
+
+        int frac = milli % 1000;
+        mOut.put((byte) ('0' + frac / 100));
+        mOut.put((byte) ('0' + (frac / 10) % 10));
+        mOut.put((byte) ('0' + frac % 10));
+    }
+}
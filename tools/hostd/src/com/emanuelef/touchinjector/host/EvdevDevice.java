@@ -0,0 +1,133 @@
+/*
+ * This file is part of TouchInjector.
+ *
+ * TouchInjector is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * TouchInjector is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with TouchInjector.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ * Copyright 2021 - Emanuele Faranda
+ */
+
+package com.emanuelef.touchinjector.host;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+
+// Reads the linux input_event structs of an evdev device, or of any file/pipe with the same content,
+// into a reusable buffer:
+//   struct input_event { struct timeval time; __u16 type; __u16 code; __s32 value; };
+public class EvdevDevice {
+    public static final int EV_SYN = 0x00;
+    public static final int EV_KEY = 0x01;
+    public static final int EV_ABS = 0x03;
+    public static final int SYN_REPORT = 0;
+    public static final int SYN_DROPPED = 3;
+
+    private static final int EVENTS_PER_READ = 64;
+
+    public interface Listener {
+        void onEvent(long timeMicros, int type, int code, int value);
+    }
+
+    private final FileChannel mChannel;
+    private final ByteBuffer mBuffer;
+    private final boolean mLongTimeval;
+    private final String mPath;
+
+    // longTimeval: true if the timeval fields are 64 bit wide (64 bit kernels)
+    public EvdevDevice(String path, boolean longTimeval) throws IOException {
+        mPath = path;
+        mLongTimeval = longTimeval;
+        mChannel = FileChannel.open(Paths.get(path), StandardOpenOption.READ);
+        mBuffer = ByteBuffer.allocateDirect(EVENTS_PER_READ * getEventSize()).order(ByteOrder.nativeOrder());
+    }
+
+    public int getEventSize() {
+        return mLongTimeval ? 24 : 16;
+    }
+
+    public String getPath() {
+        return mPath;
+    }
+
+    // Blocks until some events are available, then passes them to the listener.
+    // Returns false on EOF.
+    public boolean read(Listener listener) throws IOException {
+        int eventSize = getEventSize();
+
+        if(mChannel.read(mBuffer) < 0)
+            return false;
+
+        mBuffer.flip();
+
+        while(mBuffer.remaining() >= eventSize) {
+            long sec = mLongTimeval ? mBuffer.getLong() : mBuffer.getInt();
+            long usec = mLongTimeval ? mBuffer.getLong() : mBuffer.getInt();
+            int type = mBuffer.getShort() & 0xFFFF;
+            int code = mBuffer.getShort() & 0xFFFF;
+            int value = mBuffer.getInt();
+
+            listener.onEvent(sec * 1000000 + usec, type, code, value);
+        }
+
+        // Keep partial events, which can happen on pipes
+        mBuffer.compact();
+        return true;
+    }
+
+    public void close() {
+        try {
+            mChannel.close();
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
+
+    // Returns the device name as reported by sysfs, null if not available (e.g. on a pipe)
+    public static String getName(String path) {
+        String node = new File(path).getName();
+
+        try {
+            return new String(Files.readAllBytes(Paths.get("/sys/class/input/" + node + "/device/name"))).trim();
+        } catch (IOException e) {
+            return null;
+        }
+    }
+
+    // Returns the path of the first /dev/input/event* device whose name contains one of the names
+    public static String find(String... names) {
+        File[] nodes = new File("/dev/input").listFiles((dir, name) -> name.startsWith("event"));
+
+        if(nodes == null)
+            return null;
+
+        for(File node: nodes) {
+            String devName = getName(node.getPath());
+
+            if(devName == null)
+                continue;
+
+            for(String name: names) {
+                if(devName.contains(name))
+                    return node.getPath();
+            }
+        }
+
+        return null;
+    }
+}
@@ -0,0 +1,183 @@
+/*
+ * This file is part of TouchInjector.
+ *
+ * TouchInjector is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * TouchInjector is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with TouchInjector.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ * Copyright 2021 - Emanuele Faranda
+ */
+
+package com.emanuelef.touchinjector.host;
+
+import java.util.Arrays;
+
+// Maps the evdev events of a gamepad to the GamepadKey codes and normalized sticks understood by
+// the app. See also GamepadKey.java in the app.
+public abstract class Gamepad {
+    public static final int K_UNKNOWN = 0;
+    public static final int K_Y = 1;
+    public static final int K_B = 2;
+    public static final int K_A = 3;
+    public static final int K_X = 4;
+    public static final int K_UP = 5;
+    public static final int K_RIGHT = 6;
+    public static final int K_DOWN = 7;
+    public static final int K_LEFT = 8;
+    public static final int K_START = 9;
+    public static final int K_SELECT = 10;
+    public static final int K_LB = 11;
+    public static final int K_LT = 12;
+    public static final int K_RB = 13;
+    public static final int K_RT = 14;
+    public static final int K_HOME = 15;
+    public static final int K_RSTICK = 16;
+    public static final int K_LSTICK = 17;
+
+    private static final int KEY_MAX = 0x300;
+
+    public float deadzone = 0.0f;
+    public float axisMax = 32767;
+    public int lXAxis = 0;
+    public int lYAxis = 1;
+    public int rXAxis = 3;
+    public int rYAxis = 4;
+    protected final int[] mMapping = new int[KEY_MAX];
+
+    Gamepad() {
+        Arrays.fill(mMapping, K_UNKNOWN);
+    }
+
+    public abstract String getName();
+
+    // Returns the GamepadKey code of an EV_KEY code
+    public int mapKey(int code) {
+        return ((code >= 0) && (code < KEY_MAX)) ? mMapping[code] : K_UNKNOWN;
+    }
+
+    // Returns the trigger key if the EV_ABS code is an analog trigger, K_UNKNOWN otherwise
+    public int getTriggerKey(int code) {
+        return K_UNKNOWN;
+    }
+
+    public int getTriggerEdgeHigh() {
+        return 0;
+    }
+
+    public int getTriggerEdgeLow() {
+        return 0;
+    }
+
+    public float normalizeAxis(int val) {
+        return val / axisMax;
+    }
+
+    // Removes the radial deadzone from the (x, y) vector, storing the result into out[off], out[off + 1].
+    // The vector is scaled in the (0, 1) domain as it started from the edge of the deadzone.
+    public void removeDeadzone(float x, float y, float[] out, int off) {
+        double hh = Math.hypot(x, y);
+
+        if(hh <= deadzone) {
+            out[off] = 0;
+            out[off + 1] = 0;
+            return;
+        }
+
+        double inzone = (hh - deadzone) / (1.0 - deadzone);
+        double scale = inzone / hh;
+        out[off] = unitRange((float) (x * scale));
+        out[off + 1] = unitRange((float) (y * scale));
+    }
+
+    private static float unitRange(float a) {
+        return Math.min(Math.max(a, -1.0f), 1.0f);
+    }
+
+    public static class Xbox360 extends Gamepad {
+        private static final int LT_AXIS = 2;
+        private static final int RT_AXIS = 5;
+
+        public Xbox360() {
+            deadzone = 0.43f;
+
+            mMapping[308] = K_Y;
+            mMapping[305] = K_B;
+            mMapping[304] = K_A;
+            mMapping[307] = K_X;
+            mMapping[706] = K_UP;
+            mMapping[705] = K_RIGHT;
+            mMapping[707] = K_DOWN;
+            mMapping[704] = K_LEFT;
+            mMapping[315] = K_START;
+            mMapping[314] = K_SELECT;
+            mMapping[310] = K_LB;
+            mMapping[311] = K_RB;
+            mMapping[316] = K_HOME;
+            mMapping[318] = K_RSTICK;
+            mMapping[317] = K_LSTICK;
+        }
+
+        @Override
+        public String getName() {
+            return "Xbox 360";
+        }
+
+        @Override
+        public int getTriggerKey(int code) {
+            if(code == LT_AXIS)
+                return K_LT;
+            else if(code == RT_AXIS)
+                return K_RT;
+            return K_UNKNOWN;
+        }
+
+        @Override
+        public int getTriggerEdgeHigh() {
+            return 180;
+        }
+
+        @Override
+        public int getTriggerEdgeLow() {
+            return 60;
+        }
+    }
+
+    // https://github.com/DanielOgorchock/joycond
+    public static class Joycons extends Gamepad {
+        public Joycons() {
+            deadzone = 0.10f;
+
+            mMapping[307] = K_Y;
+            mMapping[305] = K_B;
+            mMapping[304] = K_A;
+            mMapping[308] = K_X;
+            mMapping[545] = K_UP;
+            mMapping[547] = K_RIGHT;
+            mMapping[544] = K_DOWN;
+            mMapping[546] = K_LEFT;
+            mMapping[315] = K_START;
+            mMapping[314] = K_SELECT;
+            mMapping[310] = K_LB;
+            mMapping[312] = K_LT;
+            mMapping[311] = K_RB;
+            mMapping[313] = K_RT;
+            mMapping[316] = K_HOME;
+            mMapping[318] = K_RSTICK;
+            mMapping[317] = K_LSTICK;
+        }
+
+        @Override
+        public String getName() {
+            return "Combined Joy-Cons";
+        }
+    }
+}
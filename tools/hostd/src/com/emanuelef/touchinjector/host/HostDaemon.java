@@ -0,0 +1,365 @@
+/*
+ * This file is part of TouchInjector.
+ *
+ * TouchInjector is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * TouchInjector is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with TouchInjector.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ * Copyright 2021 - Emanuele Faranda
+ */
+
+package com.emanuelef.touchinjector.host;
+
+import java.io.IOException;
+import java.util.Arrays;
+
+// Host companion daemon, a replacement for touchinjector.py which reads the gamepad input_event
+// structs directly from /dev/input and sends the commands to SocketIME as soon as each evdev frame
+// (SYN_REPORT) completes. The sticks are rate limited and the rate adapts to the app feedback.
+//
+// Build and run (NOTE: run "adb forward tcp:7070 tcp:7070" before starting):
+//   javac -d /tmp/hostd $(find tools/hostd/src -name '*.java')
+//   java -cp /tmp/hostd com.emanuelef.touchinjector.host.HostDaemon [options]
+//
+// Options:
+//   --device PATH   the evdev device (or a pipe with the same content). Autodetected by default
+//   --type TYPE     xbox|joycons, mandatory if the device name cannot be read (e.g. on a pipe)
+//   --host HOST     the SocketIME host, 127.0.0.1 by default
+//   --port PORT     the SocketIME port, 7070 by default
+//   --timeval32     the input_event timeval is 32 bit wide (32 bit kernels)
+//   --jitter-buffer let the app smooth the commands bursts, useful over adb via Wi-Fi
+//   --dry-run       print the commands to stdout instead of sending them
+public class HostDaemon implements EvdevDevice.Listener {
+    private static final long AXIS_NOTIFY_INTERVAL = 10000000; // ns
+    private static final long MIN_AXIS_NOTIFY_INTERVAL = 4000000; // ns
+    private static final long MAX_AXIS_NOTIFY_INTERVAL = 50000000; // ns
+    private static final float MIN_DELTA = 0.015f;
+    private static final long RECONNECT_POLL_INTERVAL = 100; // ms
+
+    private final Gamepad mGamepad;
+    private final Connection mConn;
+
+    // L, R
+    private final float[] mSticks = new float[4];
+    private final float[] mSent = new float[4];
+    private final float[] mDeadzoned = new float[4];
+    private final boolean[] mStickChanged = new boolean[2];
+    private final long[] mStickTime = new long[2];
+    private final boolean[] mTriggerPressed = new boolean[2];
+    private long mNextAxisNotify;
+
+    HostDaemon(Gamepad gamepad, Connection conn) {
+        mGamepad = gamepad;
+        mConn = conn;
+    }
+
+    private long getNotifyInterval() {
+        int maxRate = mConn.getMaxRate();
+
+        if(maxRate <= 0)
+            return AXIS_NOTIFY_INTERVAL;
+
+        return Math.min(Math.max(1000000000L / maxRate, MIN_AXIS_NOTIFY_INTERVAL), MAX_AXIS_NOTIFY_INTERVAL);
+    }
+
+    // Only fills the buffer, the commands are sent by the flusher thread
+    @Override
+    public synchronized void onEvent(long timeMicros, int type, int code, int value) {
+        switch(type) {
+            case EvdevDevice.EV_KEY:
+                if(value != 2) // ignore autorepeat
+                    mConn.putKey(value != 0, mGamepad.mapKey(code), timeMicros);
+                break;
+            case EvdevDevice.EV_ABS:
+                onAbsEvent(timeMicros, code, value);
+                break;
+            case EvdevDevice.EV_SYN:
+                if((code == EvdevDevice.SYN_REPORT) && onFrameEnd() && mConn.take())
+                    notifyAll();
+                break;
+        }
+    }
+
+    private void onAbsEvent(long timeMicros, int code, int value) {
+        int trigger = mGamepad.getTriggerKey(code);
+
+        if(trigger != Gamepad.K_UNKNOWN) {
+            // Convert LT/RT from axis to button, with hysteresis
+            int idx = (trigger == Gamepad.K_LT) ? 0 : 1;
+
+            if(!mTriggerPressed[idx] && (value >= mGamepad.getTriggerEdgeHigh())) {
+                mConn.putKey(true, trigger, timeMicros);
+                mTriggerPressed[idx] = true;
+            } else if(mTriggerPressed[idx] && (value <= mGamepad.getTriggerEdgeLow())) {
+                mConn.putKey(false, trigger, timeMicros);
+                mTriggerPressed[idx] = false;
+            }
+            return;
+        }
+
+        boolean isLeft = ((code == mGamepad.lXAxis) || (code == mGamepad.lYAxis));
+        boolean isY = ((code == mGamepad.lYAxis) || (code == mGamepad.rYAxis));
+
+        if(!isLeft && (code != mGamepad.rXAxis) && (code != mGamepad.rYAxis))
+            return;
+
+        int idx = (isLeft ? 0 : 2) + (isY ? 1 : 0);
+        float newVal = mGamepad.normalizeAxis(isY ? -value : value);
+
+        if(Math.abs(newVal - mSticks[idx]) >= MIN_DELTA) {
+            mSticks[idx] = newVal;
+            mStickChanged[isLeft ? 0 : 1] = true;
+            mStickTime[isLeft ? 0 : 1] = timeMicros;
+        }
+    }
+
+    // Returns true if the buffered commands must be sent
+    private boolean onFrameEnd() {
+        checkSession();
+
+        if(mStickChanged[0] || mStickChanged[1]) {
+            if(mConn.isConnected() && (System.nanoTime() >= mNextAxisNotify))
+                putSticks();
+            else
+                notifyAll(); // rate limited or disconnected, the flusher will send them
+        }
+
+        return mConn.hasPending();
+    }
+
+    private void checkSession() {
+        if(mConn.takeSessionReset()) {
+            // New session, the app sticks are released. The held keys are already put.
+            Arrays.fill(mSent, 0);
+            mStickChanged[0] = mStickChanged[1] = true;
+        }
+    }
+
+    private void putSticks() {
+        mNextAxisNotify = System.nanoTime() + getNotifyInterval();
+
+        // Both the sticks changes are injected in a single event
+        boolean frame = mStickChanged[0] && mStickChanged[1];
+
+        if(frame)
+            mConn.putFrame(true);
+
+        for(int i = 0; i < 2; i++) {
+            if(!mStickChanged[i])
+                continue;
+
+            int off = i * 2;
+            mGamepad.removeDeadzone(mSticks[off], mSticks[off + 1], mDeadzoned, off);
+            mStickChanged[i] = false;
+
+            if((mDeadzoned[off] != mSent[off]) || (mDeadzoned[off + 1] != mSent[off + 1])) {
+                mConn.putStick(i == 0, mDeadzoned[off], mDeadzoned[off + 1], mStickTime[i]);
+                mSent[off] = mDeadzoned[off];
+                mSent[off + 1] = mDeadzoned[off + 1];
+            }
+        }
+
+        if(frame)
+            mConn.putFrame(false);
+    }
+
+    // Sends the commands taken from the buffer and the sticks changes delayed by the rate
+    // limiting. This is the only thread which connects and writes, outside of the lock, so that
+    // a slow one does not block the evdev thread.
+    private void runFlusher() {
+        try {
+            while(true) {
+                Connection.Batch batch;
+
+                synchronized (this) {
+                    batch = nextBatch();
+                }
+
+                if(batch == null) {
+                    if(mConn.tryConnect()) {
+                        synchronized (this) {
+                            mConn.startSession();
+                        }
+                    }
+                    continue;
+                }
+
+                mConn.send(batch);
+
+                synchronized (this) {
+                    mConn.recycle(batch);
+
+                    // Possibly kept while no buffer was free
+                    mConn.take();
+                    notifyAll();
+                }
+            }
+        } catch (InterruptedException ignored) {}
+    }
+
+    // Waits for the commands to send. Returns null when a connection attempt is due.
+    private Connection.Batch nextBatch() throws InterruptedException {
+        while(true) {
+            checkSession();
+
+            boolean sticks = mStickChanged[0] || mStickChanged[1];
+            boolean lost = mConn.hasLostKeys();
+
+            // Connect before sending, the commands taken follow the HELLO
+            if(!mConn.isConnected() && mConn.canConnect() && (mConn.hasTaken() || sticks || lost))
+                return null;
+
+            Connection.Batch batch = mConn.pollTaken();
+
+            if(batch != null)
+                return batch;
+
+            if(!sticks && !lost && !mConn.isAwaitingSession()) {
+                wait();
+                continue;
+            }
+
+            // While disconnected, keep the changes pending to send them on resume
+            if(!mConn.isConnected() || (!sticks && mConn.isAwaitingSession())) {
+                wait(RECONNECT_POLL_INTERVAL);
+                continue;
+            }
+
+            // Dropped while connected, otherwise sent once the app replies to the HELLO
+            if(lost && !mConn.isAwaitingSession())
+                mConn.putLostKeys();
+
+            if(sticks) {
+                long delay = mNextAxisNotify - System.nanoTime();
+
+                if(delay > 0) {
+                    mConn.take();
+                    wait(delay / 1000000, (int) (delay % 1000000));
+                    continue;
+                }
+
+                putSticks();
+            }
+
+            mConn.take();
+        }
+    }
+
+    private static void usage() {
+        System.out.println("Usage: HostDaemon [--device PATH] [--type xbox|joycons] [--host HOST] " +
+                "[--port PORT] [--timeval32] [--jitter-buffer] [--left-curve SPEC] [--right-curve SPEC] [--low-latency] [--dry-run]");
+        System.exit(1);
+    }
+
+    public static void main(String[] args) {
+        String devPath = null;
+        String type = null;
+        String host = "127.0.0.1";
+        int port = 7070;
+        boolean longTimeval = true;
+        boolean dryRun = false;
+        boolean jitterBuffer = false;
+        boolean lowLatency = false;
+        String leftCurve = null;
+        String rightCurve = null;
+
+        try {
+            for(int i = 0; i < args.length; i++) {
+                switch(args[i]) {
+                    case "--device":    devPath = args[++i]; break;
+                    case "--type":      type = args[++i]; break;
+                    case "--host":      host = args[++i]; break;
+                    case "--port":      port = Integer.parseInt(args[++i]); break;
+                    case "--timeval32": longTimeval = false; break;
+                    case "--dry-run":   dryRun = true; break;
+                    case "--jitter-buffer": jitterBuffer = true; break;
+                    case "--left-curve":  leftCurve = args[++i]; break;
+                    case "--right-curve": rightCurve = args[++i]; break;
+                    case "--low-latency": lowLatency = true; break;
+                    default:            usage();
+                }
+            }
+        } catch (ArrayIndexOutOfBoundsException | NumberFormatException e) {
+            usage();
+        }
+
+        Gamepad xbox = new Gamepad.Xbox360();
+        Gamepad joycons = new Gamepad.Joycons();
+
+        if(devPath == null)
+            devPath = EvdevDevice.find(joycons.getName(), xbox.getName());
+
+        if(devPath == null) {
+            System.out.println("No supported gamepad found");
+            System.exit(1);
+        }
+
+        if(type == null) {
+            String name = EvdevDevice.getName(devPath);
+
+            if(name != null)
+                type = name.contains(joycons.getName()) ? "joycons" : (name.contains(xbox.getName()) ? "xbox" : null);
+        }
+
+        Gamepad gamepad = "joycons".equals(type) ? joycons : ("xbox".equals(type) ? xbox : null);
+
+        if(gamepad == null) {
+            System.out.println("Unknown gamepad type, use --type");
+            System.exit(1);
+        }
+
+        EvdevDevice dev;
+
+        try {
+            dev = new EvdevDevice(devPath, longTimeval);
+        } catch (IOException e) {
+            e.printStackTrace();
+            System.exit(1);
+            return;
+        }
+
+        System.out.println("Using " + devPath + " - " + gamepad.getName());
+
+        Connection conn = new Connection(host, port, dryRun);
+        conn.setJitterBuffer(jitterBuffer);
+        conn.setResponseCurves(leftCurve, rightCurve);
+        conn.setLowLatency(lowLatency);
+        HostDaemon daemon = new HostDaemon(gamepad, conn);
+
+        if(conn.tryConnect())
+            conn.startSession();
+
+        Thread flusher = new Thread(daemon::runFlusher);
+        flusher.setDaemon(true);
+        flusher.start();
+
+        try {
+            while(dev.read(daemon)) {
+                // read until EOF
+            }
+        } catch (IOException e) {
+            e.printStackTrace();
+        } finally {
+            dev.close();
+
+            synchronized (daemon) {
+                // Let the flusher send the last commands
+                try {
+                    while(!conn.isIdle() && conn.isConnected())
+                        daemon.wait(RECONNECT_POLL_INTERVAL);
+                } catch (InterruptedException ignored) {}
+            }
+
+            conn.close();
+        }
+    }
+}
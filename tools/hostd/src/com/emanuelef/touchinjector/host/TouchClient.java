@@ -0,0 +1,266 @@
+/*
+ * This file is part of TouchInjector.
+ *
+ * TouchInjector is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * TouchInjector is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with TouchInjector.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ * Copyright 2021 - Emanuele Faranda
+ */
+
+package com.emanuelef.touchinjector.host;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.StandardSocketOptions;
+import java.nio.ByteBuffer;
+import java.nio.channels.SocketChannel;
+import java.util.UUID;
+
+// Client of the SocketIME raw touch commands, for the scripted automation. Coordinates are in
+// screen pixels and the pointer ids range from 0 to 7. The commands are buffered and sent with a
+// single write on flush, e.g.:
+//
+//   TouchClient client = new TouchClient("127.0.0.1", 7070);
+//   client.beginFrame();
+//   client.down(0, 500, 500);
+//   client.down(1, 700, 500);
+//   client.endFrame();
+//   client.swipe(2, 100, 900, 100, 300, 250);
+//   client.flush();
+//
+// The app queues the gestures with their delays, so many of them can be sent at once. sync waits
+// for them to be played, close does it too, as the pointers still pressed are released when the
+// client disconnects. The client identifies itself as a raw one (HELLO|token|raw), so it does not
+// reset the game handler nor the session of a gamepad client. Not thread safe.
+public class TouchClient implements AutoCloseable {
+    private static final int BUFFER_SIZE = 65536;
+
+    private final SocketChannel mChannel;
+    private final ByteBuffer mOut;
+    private final ByteBuffer mIn;
+    private long mSyncId;
+
+    public TouchClient(String host, int port) throws IOException {
+        mChannel = SocketChannel.open();
+        mChannel.setOption(StandardSocketOptions.TCP_NODELAY, true);
+        mChannel.connect(new InetSocketAddress(host, port));
+        mOut = ByteBuffer.allocateDirect(BUFFER_SIZE);
+        mIn = ByteBuffer.allocate(1024);
+        mIn.limit(0);
+
+        putAscii("HELLO|" + UUID.randomUUID().toString().replace("-", "") + "|raw");
+        endCommand();
+    }
+
+    public void down(int id, float x, float y) throws IOException {
+        putCommand("T_DOWN|", id);
+        putCoords(x, y);
+        endCommand();
+    }
+
+    public void move(int id, float x, float y) throws IOException {
+        putCommand("T_MOVE|", id);
+        putCoords(x, y);
+        endCommand();
+    }
+
+    public void up(int id) throws IOException {
+        putCommand("T_UP|", id);
+        endCommand();
+    }
+
+    // durationMs: how long the pointer is held
+    public void tap(int id, float x, float y, long durationMs) throws IOException {
+        putCommand("T_TAP|", id);
+        putCoords(x, y);
+        mOut.put((byte) '|');
+        putLong(durationMs);
+        endCommand();
+    }
+
+    public void swipe(int id, float x1, float y1, float x2, float y2, long durationMs) throws IOException {
+        putCommand("T_SWIPE|", id);
+        putCoords(x1, y1);
+        putCoords(x2, y2);
+        mOut.put((byte) '|');
+        putLong(durationMs);
+        endCommand();
+    }
+
+    // The moves until endFrame are injected together, e.g. for the multi-finger gestures
+    public void beginFrame() throws IOException {
+        putAscii("FRAME_START");
+        endCommand();
+    }
+
+    public void endFrame() throws IOException {
+        putAscii("FRAME_END");
+        endCommand();
+    }
+
+    public void flush() throws IOException {
+        mOut.flip();
+
+        while(mOut.hasRemaining())
+            mChannel.write(mOut);
+
+        mOut.clear();
+    }
+
+    // Flushes and waits for the gestures sent so far to be played
+    public void sync() throws IOException {
+        String reply = "T_SYNC|" + (++mSyncId);
+
+        putAscii(reply);
+        endCommand();
+        flush();
+
+        // Skips the other lines, e.g. the FEEDBACK ones
+        while(!reply.equals(readLine()))
+            ;
+    }
+
+    @Override
+    public void close() throws IOException {
+        try {
+            sync();
+        } finally {
+            mChannel.close();
+        }
+    }
+
+    private String readLine() throws IOException {
+        StringBuilder line = new StringBuilder();
+
+        while(true) {
+            if(!mIn.hasRemaining()) {
+                mIn.clear();
+
+                if(mChannel.read(mIn) < 0)
+                    throw new IOException("Connection closed");
+
+                mIn.flip();
+                continue;
+            }
+
+            char c = (char) mIn.get();
+
+            if(c == '\n')
+                return line.toString();
+
+            line.append(c);
+        }
+    }
+
+    // Flushes when the buffer is almost full, a command is way shorter than the margin
+    private void putCommand(String cmd, int id) throws IOException {
+        if(mOut.remaining() < 128)
+            flush();
+
+        putAscii(cmd);
+        putLong(id);
+    }
+
+    private void endCommand() {
+        mOut.put((byte) '\n');
+    }
+
+    private void putCoords(float x, float y) {
+        mOut.put((byte) '|');
+        putFixed1(x);
+        mOut.put((byte) '|');
+        putFixed1(y);
+    }
+
+    private void putAscii(String s) {
+        for(int i = 0; i < s.length(); i++)
+            mOut.put((byte) s.charAt(i));
+    }
+
+    private void putLong(long val) {
+        if(val < 0) {
+            mOut.put((byte) '-');
+            val = -val;
+        }
+
+        long div = 1;
+
+        while(val / div >= 10)
+            div *= 10;
+
+        while(div > 0) {
+            mOut.put((byte) ('0' + (val / div) % 10));
+            div /= 10;
+        }
+    }
+
+    // Equivalent to "%.1f", sub-pixel precision is enough
+    private void putFixed1(float val) {
+        int tenths = Math.round(val * 10);
+
+        if(tenths < 0) {
+            mOut.put((byte) '-');
+            tenths = -tenths;
+        }
+
+        putLong(tenths / 10);
+        mOut.put((byte) '.');
+        mOut.put((byte) ('0' + tenths % 10));
+    }
+
+    private static void usage() {
+        System.out.println("Usage: TouchClient [--host HOST] [--port PORT] tap X Y [MS] | swipe X1 Y1 X2 Y2 MS");
+        System.exit(1);
+    }
+
+    // Minimal command line, e.g. to test the connection
+    public static void main(String[] args) {
+        String host = "127.0.0.1";
+        int port = 7070;
+        int i = 0;
+
+        try {
+            for(; (i < args.length) && args[i].startsWith("--"); i++) {
+                switch(args[i]) {
+                    case "--host":  host = args[++i]; break;
+                    case "--port":  port = Integer.parseInt(args[++i]); break;
+                    default:        usage();
+                }
+            }
+
+            if(i >= args.length)
+                usage();
+
+            try(TouchClient client = new TouchClient(host, port)) {
+                switch(args[i]) {
+                    case "tap":
+                        client.tap(0, Float.parseFloat(args[i + 1]), Float.parseFloat(args[i + 2]),
+                                (args.length > i + 3) ? Long.parseLong(args[i + 3]) : 50);
+                        break;
+                    case "swipe":
+                        client.swipe(0, Float.parseFloat(args[i + 1]), Float.parseFloat(args[i + 2]),
+                                Float.parseFloat(args[i + 3]), Float.parseFloat(args[i + 4]),
+                                Long.parseLong(args[i + 5]));
+                        break;
+                    default:
+                        usage();
+                }
+            }
+        } catch (ArrayIndexOutOfBoundsException | NumberFormatException e) {
+            usage();
+        } catch (IOException e) {
+            System.out.println(e.getMessage());
+            System.exit(1);
+        }
+    }
+}
@@ -22,6 +22,7 @@ import socket
 import evdev
 import time
 import math
+import uuid
 from select import select
 from enum import Enum
 
@@ -33,7 +34,25 @@ PORT = 7070
 
 CONNECT_RETRY_INTERVAL = 3
 AXIS_NOTIFY_INTERVAL = 0.010
+
+# The app advertises the max sticks rate it can absorb, see RateFeedback.java
+MIN_AXIS_NOTIFY_INTERVAL = 0.004
+MAX_AXIS_NOTIFY_INTERVAL = 0.050
 MIN_DELTA = 0.015
+
+# Let the app smooth the commands bursts with a jitter buffer, useful over adb via Wi-Fi
+JITTER_BUFFER = False
+
+# Raise the priority of the app input threads, see LowLatencyMode.java
+LOW_LATENCY = False
+
+# Sticks response curves applied by the app, e.g. "inner=0.05,anti=0.1,expo=0.4", see
+# ResponseCurve.java. None keeps the app curve.
+LEFT_CURVE = None
+RIGHT_CURVE = None
+
+# Aim with the right Joy-Con gyro (hid-nintendo IMU device), on top of the right stick
+GYRO = True
 DEBUG = False
 
 # #######################################################
@@ -184,6 +203,51 @@ def findGamepad():
 
 # #######################################################
 
+def findImu():
+  global imu
+  global gyro_scale
+
+  if not GYRO or not isinstance(gamepad, JoyconsGamepad):
+    return
+
+  for devpath in evdev.list_devices():
+    try:
+      dev = evdev.InputDevice(devpath)
+
+      if "Right Joy-Con IMU" in dev.name:
+        imu = dev
+        break
+
+      dev.close()
+    except Exception as e:
+      print(e)
+
+  if not imu:
+    print("Joy-Con IMU not found, gyro disabled")
+    return
+
+  # The gyro axes resolution is in units per deg/s, the app expects rad/s
+  for i, code in enumerate(GYRO_AXES):
+    res = imu.absinfo(code).resolution
+    gyro_scale[i] = (math.pi / 180 / res) if res else 0
+
+  print("Using %s - %s" % (imu.path, imu.name))
+
+# #######################################################
+
+def readImu():
+  for event in imu.read():
+    if event.type == evdev.ecodes.EV_ABS:
+      if event.code in GYRO_AXES:
+        idx = GYRO_AXES.index(event.code)
+        gyro[idx] = event.value * gyro_scale[idx]
+    elif (event.type == evdev.ecodes.EV_SYN) and (event.code == evdev.ecodes.SYN_REPORT):
+      # The app integrates the samples and rate limits the resulting moves
+      ts = event.sec * 1000000 + event.usec
+      trySend("GYRO|%.4f|%.4f|%.4f|%d\n" % (gyro[0], gyro[1], gyro[2], ts))
+
+# #######################################################
+
 def unitRange(a):
   _min = -1.0
   _max = 1.0
@@ -194,12 +258,32 @@ def unitRange(a):
 def tryConnect():
   global server
   global connect_retry_t
+  global feedback_buf
+  global axis_notify_interval
+
+  feedback_buf = b""
+  axis_notify_interval = AXIS_NOTIFY_INTERVAL
 
   try:
     server = socket.socket(socket.AF_INET, socket.SOCK_STREAM)
     server.setsockopt(socket.IPPROTO_TCP, socket.TCP_NODELAY, True)
     server.connect((HOST, PORT))
 
+    # Resume the session if the app still holds it, see SocketIME.startSession
+    server.send(("HELLO|%s\n" % session_token).encode("ascii"))
+
+    if JITTER_BUFFER:
+      server.send(b"JITTER|1\n")
+    if LOW_LATENCY:
+      server.send(b"LOW_LATENCY|1\n")
+    if LEFT_CURVE is not None:
+      server.send(("CURVE|L|%s\n" % LEFT_CURVE).encode("ascii"))
+    if RIGHT_CURVE is not None:
+      server.send(("CURVE|R|%s\n" % RIGHT_CURVE).encode("ascii"))
+
+    # The lost keys are sent once the app replies to the HELLO, see main
+    keys_touched.clear()
+
     print("Connected to server")
   except socket.error as e:
     print(str(e))
@@ -216,48 +300,163 @@ def trySend(msg):
     print(msg)
 
   if not server:
-    return
+    return False
 
   try:
     server.send(msg.encode("ascii"))
+    return True
+  except socket.error as e:
+    print(str(e))
+    server.close()
+    server = None
+    connect_retry_t = time.time() + CONNECT_RETRY_INTERVAL
+    return False
+
+# The keys transitions lost while disconnected are sent again once the session is established,
+# see main. The keys sent after the HELLO are already up to date in the app.
+def sendKey(key, down, ts=None):
+  keys_pressed[key] = down
+  msg = "K_%s|%d" % (("DOWN" if down else "UP"), key)
+
+  if ts is not None:
+    msg += "|%d" % ts
+
+  if trySend(msg + "\n"):
+    keys_touched.add(key)
+  else:
+    keys_lost.add(key)
+
+# #######################################################
+
+def handleFeedback(line):
+  global axis_notify_interval
+  global session_reset
+  global session_resumed
+
+  parts = line.split("|")
+
+  if (len(parts) == 4) and (parts[0] == "SESSION"):
+    if parts[2] == "1":
+      print("Session resumed after %s ms" % parts[3])
+      session_resumed = True
+    else:
+      session_reset = True
+    return
+
+  if DEBUG and (len(parts) == 5) and (parts[0] == "JITTER"):
+    print("Jitter buffer: depth %s, delay %s ms, late %s, dropped %s" %
+      (parts[1], parts[2], parts[3], parts[4]))
+
+  if (len(parts) != 5) or (parts[0] != "FEEDBACK"):
+    return
+
+  max_rate = int(parts[4])
+
+  if max_rate > 0:
+    axis_notify_interval = min(max(1.0 / max_rate, MIN_AXIS_NOTIFY_INTERVAL), MAX_AXIS_NOTIFY_INTERVAL)
+
+  if DEBUG:
+    print("Queue %s/%s, injecting %s ev/s -> interval %.1f ms" %
+      (parts[1], parts[2], parts[3], axis_notify_interval * 1000))
+
+# #######################################################
+
+def readFeedback():
+  global server
+  global feedback_buf
+  global connect_retry_t
+
+  try:
+    data = server.recv(4096)
   except socket.error as e:
+    data = b""
     print(str(e))
+
+  if not data:
     server.close()
     server = None
     connect_retry_t = time.time() + CONNECT_RETRY_INTERVAL
+    return
+
+  feedback_buf += data
+
+  while b"\n" in feedback_buf:
+    line, feedback_buf = feedback_buf.split(b"\n", 1)
+    handleFeedback(line.decode("ascii"))
 
 # #######################################################
 
 gamepad = None
+imu = None
 server = None
 connect_retry_t = 0
+feedback_buf = b""
+axis_notify_interval = AXIS_NOTIFY_INTERVAL
+session_token = uuid.uuid4().hex
+session_reset = False
+session_resumed = False
 
 # L, R
 stick_changed = [False, False]
+stick_time = [0, 0]
 trigger_pressed = [False, False]
+keys_pressed = {}
+keys_lost = set()
+keys_touched = set()
+
+GYRO_AXES = [evdev.ecodes.ABS_RX, evdev.ecodes.ABS_RY, evdev.ecodes.ABS_RZ]
+gyro = [0.0, 0.0, 0.0]
+gyro_scale = [0.0, 0.0, 0.0]
 
 def main():
   global connect_retry_t
+  global session_reset
+  global session_resumed
 
   last_sent_l_stick = [0, 0]
   last_sent_r_stick = [0, 0]
   next_axis_notify = 0
 
   findGamepad()
+  findImu()
   tryConnect()
 
   while True:
     now = time.time()
 
-    if (stick_changed[0] or stick_changed[1]) and (now >= next_axis_notify):
-      next_axis_notify = now + AXIS_NOTIFY_INTERVAL
+    if session_reset:
+      # New session, the app sticks and keys are released
+      session_reset = False
+      last_sent_l_stick = [0, 0]
+      last_sent_r_stick = [0, 0]
+      stick_changed[0] = stick_changed[1] = True
+
+      # The held keys only, the app released them
+      keys_lost.clear()
+
+      for key, down in list(keys_pressed.items()):
+        if down and (key not in keys_touched):
+          sendKey(key, True)
+
+    if session_resumed:
+      # The lost transitions only, the app still holds the other keys
+      session_resumed = False
+      lost = keys_lost - keys_touched
+      keys_lost.clear()
+
+      for key in lost:
+        sendKey(key, keys_pressed[key])
+
+    # While disconnected, keep the changes pending to send them on resume
+    if server and (stick_changed[0] or stick_changed[1]) and (now >= next_axis_notify):
+      next_axis_notify = now + axis_notify_interval
       msg = ""
 
       if stick_changed[0]:
         val = gamepad.removeDeadzone(gamepad.l_stick)
 
         if val != last_sent_l_stick:
-          msg += "L_STICK|%.3f|%.3f\n" % (val[0], val[1])
+          msg += "L_STICK|%.3f|%.3f|%d\n" % (val[0], val[1], stick_time[0])
           stick_changed[0] = False
           last_sent_l_stick = val
 
@@ -265,30 +464,50 @@ def main():
         val = gamepad.removeDeadzone(gamepad.r_stick)
 
         if val != last_sent_r_stick:
-          msg += "R_STICK|%.3f|%.3f\n" % (val[0], val[1])
+          msg += "R_STICK|%.3f|%.3f|%d\n" % (val[0], val[1], stick_time[1])
           stick_changed[1] = False
           last_sent_r_stick = val
 
+      if msg.count("\n") > 1:
+        # Both the sticks changes are injected in a single event
+        msg = "FRAME_START\n" + msg + "FRAME_END\n"
+
       if msg:
         trySend(msg)
 
     if(not server and (now >= connect_retry_t)):
       tryConnect()
 
-    rv = select([gamepad.dev], [], [], AXIS_NOTIFY_INTERVAL)
+    rlist = [gamepad.dev, server] if server else [gamepad.dev]
+
+    if imu:
+      rlist.append(imu)
+
+    rv = select(rlist, [], [], axis_notify_interval)
 
     if not rv[0]:
       continue
 
+    if server and (server in rv[0]):
+      readFeedback()
+
+    if imu and (imu in rv[0]):
+      readImu()
+
+    if gamepad.dev not in rv[0]:
+      continue
+
     # see also gamepad.dev.read_loop()
     for event in gamepad.dev.read():
       etype = event.type
+      # timestamp in microseconds, used by the app to set the events time
+      ts = event.sec * 1000000 + event.usec
 
       if etype == evdev.ecodes.EV_KEY:
         ekey = evdev.categorize(event)
         key = gamepad.mapping.get(ekey.scancode, GamepadKey.K_UNKNOWN)
 
-        trySend("K_%s|%d\n" % (("DOWN" if ekey.keystate else "UP"), key.value))
+        sendKey(key.value, ekey.keystate != 0, ts)
       elif etype == evdev.ecodes.EV_ABS:
         ecode = event.code
 
@@ -298,17 +517,13 @@ def main():
           val = event.value
           trigger = GamepadKey.K_LT if (ecode == Xbox360Gamepad.LT_AXIS) else GamepadKey.K_RT
           idx = 0 if (ecode == Xbox360Gamepad.LT_AXIS) else 1
-          msg = ""
 
           if (not trigger_pressed[idx]) and (val >= Xbox360Gamepad.TRIGGERS_EDGE_HIGH):
-            msg = "K_DOWN|%d\n" % (trigger.value)
+            sendKey(trigger.value, True, ts)
             trigger_pressed[idx] = True
           elif trigger_pressed[idx] and (val <= Xbox360Gamepad.TRIGGERS_EDGE_LOW):
-            msg = "K_UP|%d\n" % (trigger.value)
+            sendKey(trigger.value, False, ts)
             trigger_pressed[idx] = False
-
-          if msg:
-            trySend(msg)
         else:
           is_left = ((ecode == gamepad.l_x_axis) or (ecode == gamepad.l_y_axis))
           idx = ((ecode == gamepad.l_y_axis) or (ecode == gamepad.r_y_axis))
@@ -320,6 +535,7 @@ def main():
 
             # Rate limiting
             stick_changed[0 if is_left else 1] = True
+            stick_time[0 if is_left else 1] = ts
       elif etype != evdev.ecodes.EV_SYN:
         print("Unhanlded event: " + str(event.type))
 
@@ -331,5 +547,7 @@ if __name__ == "__main__":
   finally:
     if gamepad and gamepad.dev:
       gamepad.dev.close()
+    if imu:
+      imu.close()
     if server:
       server.close()